@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.view.Surface;
+
+/**
+ * Everything {@link OnTheGoService} needs from the camera framework which can not be faked,
+ * as {@link android.hardware.camera2.CameraManager}, its characteristics and capture request
+ * builders are final. Devices and sessions are used as they are.
+ */
+public interface CameraBackend {
+
+    String[] getCameraIdList() throws CameraAccessException;
+
+    CameraInfo getCameraInfo(String cameraId) throws CameraAccessException;
+
+    void openCamera(String cameraId, CameraDevice.StateCallback callback, Handler handler)
+            throws CameraAccessException;
+
+    /**
+     * @param device         The opened camera device
+     * @param target         The surface to stream into
+     * @param info           The info of the camera
+     * @param stabilize      Whether to enable the stabilization the hardware offers
+     * @param noiseReduction Whether to keep the default noise reduction of the template
+     * @return The repeating preview request
+     */
+    CaptureRequest createPreviewRequest(CameraDevice device, Surface target, CameraInfo info,
+            boolean stabilize, boolean noiseReduction) throws CameraAccessException;
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
+import android.util.SizeF;
+
+/**
+ * The parts of the {@link CameraCharacteristics} OnTheGo cares about.
+ */
+public class CameraInfo {
+    /** Focal length / sensor width for a ~60 degree field of view */
+    public static final float DEFAULT_FOCAL_LENGTH_RATIO = 0.866f;
+
+    public final int facing;
+    public final int sensorOrientation;
+    public final Size[] jpegSizes;
+    public final Size[] previewSizes;
+    public final Size[] yuvSizes;
+    public final boolean hasVideoStabilization;
+    public final boolean hasOpticalStabilization;
+    public final boolean hasNoiseReductionOff;
+    public final float focalLengthRatio;
+
+    public CameraInfo(int facing, int sensorOrientation, Size[] jpegSizes, Size[] previewSizes,
+            Size[] yuvSizes, boolean hasVideoStabilization, boolean hasOpticalStabilization,
+            boolean hasNoiseReductionOff, float focalLengthRatio) {
+        this.facing = facing;
+        this.sensorOrientation = sensorOrientation;
+        this.jpegSizes = jpegSizes;
+        this.previewSizes = previewSizes;
+        this.yuvSizes = yuvSizes;
+        this.hasVideoStabilization = hasVideoStabilization;
+        this.hasOpticalStabilization = hasOpticalStabilization;
+        this.hasNoiseReductionOff = hasNoiseReductionOff;
+        this.focalLengthRatio = focalLengthRatio;
+    }
+
+    public static CameraInfo fromCharacteristics(CameraCharacteristics cam) {
+        final Integer facing = cam.get(CameraCharacteristics.LENS_FACING);
+        final Integer sensorOrientation = cam.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        final StreamConfigurationMap map =
+                cam.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+        final float[] focalLengths =
+                cam.get(CameraCharacteristics.LENS_INFO_AVAILABLE_FOCAL_LENGTHS);
+        final SizeF physicalSize = cam.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+        final float focalLengthRatio;
+        if (focalLengths != null && focalLengths.length > 0
+                && physicalSize != null && physicalSize.getWidth() > 0) {
+            focalLengthRatio = focalLengths[0] / physicalSize.getWidth();
+        } else {
+            focalLengthRatio = DEFAULT_FOCAL_LENGTH_RATIO;
+        }
+
+        final int[] noiseReductionModes =
+                cam.get(CameraCharacteristics.NOISE_REDUCTION_AVAILABLE_NOISE_REDUCTION_MODES);
+
+        return new CameraInfo(
+                (facing != null) ? facing : -1,
+                (sensorOrientation != null) ? sensorOrientation : 0,
+                map.getOutputSizes(ImageFormat.JPEG),
+                map.getOutputSizes(SurfaceTexture.class),
+                map.getOutputSizes(ImageFormat.YUV_420_888),
+                contains(cam.get(CameraCharacteristics.CONTROL_AVAILABLE_VIDEO_STABILIZATION_MODES),
+                        CameraCharacteristics.CONTROL_VIDEO_STABILIZATION_MODE_ON),
+                contains(cam.get(CameraCharacteristics.LENS_INFO_AVAILABLE_OPTICAL_STABILIZATION),
+                        CameraCharacteristics.LENS_OPTICAL_STABILIZATION_MODE_ON),
+                contains(noiseReductionModes, CameraCharacteristics.NOISE_REDUCTION_MODE_OFF),
+                focalLengthRatio);
+    }
+
+    private static boolean contains(int[] modes, int mode) {
+        if (modes == null) {
+            return false;
+        }
+        for (int available : modes) {
+            if (available == mode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
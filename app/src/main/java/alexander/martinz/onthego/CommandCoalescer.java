@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Collects commands from any thread and applies them on one thread. While an apply is pending
+ * new commands only overwrite the values waiting for it, so a flood of commands costs the
+ * applying thread at most one apply per command type and posted task.
+ */
+public class CommandCoalescer {
+    public static final String KEY_ALPHA = "alpha";
+    public static final String KEY_CAMERA = "camera";
+    public static final String KEY_PAUSED = "paused";
+    public static final String KEY_GEOMETRY_ANCHOR = "geometry_anchor";
+    public static final String KEY_GEOMETRY_HEIGHT = "geometry_height";
+    public static final String KEY_GEOMETRY_OFFSET = "geometry_offset";
+    public static final String KEY_GEOMETRY_DRAGGABLE = "geometry_draggable";
+
+    public interface Target {
+        void applyCamera(int cameraType);
+
+        void applyGeometry(OverlayGeometry geometry);
+
+        void applyAlpha(float alpha);
+
+        void applyPaused(boolean paused);
+    }
+
+    private final Executor mExecutor;
+    private final Target mTarget;
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private boolean mScheduled;
+    private Float mAlpha;
+    private Integer mCamera;
+    private Boolean mPaused;
+    private OverlayGeometry mGeometry;
+    private long mReceivedCount;
+
+    // only written by the applying thread, volatile so dump() can read it from binder threads
+    private volatile long mAppliedCount;
+
+    /**
+     * @param executor Runs the applies, eg posts them to the main thread
+     * @param target   Receives the latest values
+     */
+    public CommandCoalescer(Executor executor, Target target) {
+        mExecutor = executor;
+        mTarget = target;
+    }
+
+    public void setAlpha(float alpha) {
+        set(alpha, null, null, null);
+    }
+
+    public void setCamera(int cameraType) {
+        set(null, cameraType, null, null);
+    }
+
+    public void setPaused(boolean paused) {
+        set(null, null, paused, null);
+    }
+
+    public void setGeometry(OverlayGeometry geometry) {
+        set(null, null, null, geometry);
+    }
+
+    /**
+     * Sets several values at once, they are guaranteed to be applied together.
+     * Null values are left as they are.
+     */
+    public void set(Float alpha, Integer cameraType, Boolean paused, OverlayGeometry geometry) {
+        final boolean schedule;
+        synchronized (mLock) {
+            if (alpha != null) {
+                mAlpha = alpha;
+                mReceivedCount++;
+            }
+            if (cameraType != null) {
+                mCamera = cameraType;
+                mReceivedCount++;
+            }
+            if (paused != null) {
+                mPaused = paused;
+                mReceivedCount++;
+            }
+            if (geometry != null) {
+                mGeometry = geometry;
+                mReceivedCount++;
+            }
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+
+        if (schedule) {
+            mExecutor.execute(mApplyRunnable);
+        }
+    }
+
+    public long getReceivedCount() {
+        synchronized (mLock) {
+            return mReceivedCount;
+        }
+    }
+
+    public long getAppliedCount() {
+        return mAppliedCount;
+    }
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override public void run() {
+            final Float alpha;
+            final Integer camera;
+            final Boolean paused;
+            final OverlayGeometry geometry;
+            synchronized (mLock) {
+                alpha = mAlpha;
+                camera = mCamera;
+                paused = mPaused;
+                geometry = mGeometry;
+                mAlpha = null;
+                mCamera = null;
+                mPaused = null;
+                mGeometry = null;
+                mScheduled = false;
+            }
+
+            // restarting ones first, so the cheap ones end up on the new overlay
+            if (camera != null) {
+                mTarget.applyCamera(camera);
+                mAppliedCount++;
+            }
+            if (geometry != null) {
+                mTarget.applyGeometry(geometry);
+                mAppliedCount++;
+            }
+            if (alpha != null) {
+                mTarget.applyAlpha(alpha);
+                mAppliedCount++;
+            }
+            if (paused != null) {
+                mTarget.applyPaused(paused);
+                mAppliedCount++;
+            }
+        }
+    };
+
+}
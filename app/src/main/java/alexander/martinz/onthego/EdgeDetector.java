@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sobel edge detection on a luma frame, producing ARGB pixels where only the edges are opaque.
+ * <p>
+ * The frame gets split into horizontal bands which are processed in parallel, the calling
+ * thread takes the first band itself. All buffers are owned by the caller and get reused for
+ * every frame, the detector itself does not allocate per frame.
+ */
+public class EdgeDetector {
+    private static final int MAX_THREADS = 4;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mThreshold;
+    private final int mEdgeColor;
+
+    private final Band[] mBands;
+    private final ExecutorService mExecutor;
+    private final Semaphore mBandsDone = new Semaphore(0);
+
+    private byte[] mLuma;
+    private int[] mPixels;
+
+    /**
+     * @param width     The width of the luma frames
+     * @param height    The height of the luma frames
+     * @param threshold The gradient magnitude (|gx| + |gy|) above which a pixel is an edge
+     * @param edgeColor The ARGB color of edge pixels
+     * @param threads   The amount of threads to use, 0 picks one per core
+     */
+    public EdgeDetector(int width, int height, int threshold, int edgeColor, int threads) {
+        mWidth = width;
+        mHeight = height;
+        mThreshold = threshold;
+        mEdgeColor = edgeColor;
+
+        if (threads <= 0) {
+            threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        }
+        threads = Math.max(1, Math.min(threads, height / 8));
+
+        mBands = new Band[threads];
+        final int rowsPerBand = height / threads;
+        for (int i = 0; i < threads; i++) {
+            final int start = i * rowsPerBand;
+            final int end = (i == threads - 1) ? height : start + rowsPerBand;
+            mBands[i] = new Band(start, end, i != 0);
+        }
+
+        if (threads > 1) {
+            mExecutor = Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "OnTheGoEdges");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            mExecutor = null;
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getThreadCount() {
+        return mBands.length;
+    }
+
+    /**
+     * @param luma   The luma frame, width * height bytes
+     * @param pixels The output, width * height ARGB pixels
+     */
+    public void detect(byte[] luma, int[] pixels) {
+        mLuma = luma;
+        mPixels = pixels;
+
+        for (int i = 1; i < mBands.length; i++) {
+            mExecutor.execute(mBands[i]);
+        }
+        mBands[0].run();
+        if (mBands.length > 1) {
+            mBandsDone.acquireUninterruptibly(mBands.length - 1);
+        }
+    }
+
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private void detectRows(int start, int end) {
+        final byte[] luma = mLuma;
+        final int[] pixels = mPixels;
+        final int width = mWidth;
+        final int lastRow = mHeight - 1;
+
+        for (int y = start; y < end; y++) {
+            final int row = y * width;
+            if (y == 0 || y == lastRow) {
+                for (int x = 0; x < width; x++) {
+                    pixels[row + x] = 0;
+                }
+                continue;
+            }
+
+            final int above = row - width;
+            final int below = row + width;
+            pixels[row] = 0;
+            for (int x = 1; x < width - 1; x++) {
+                final int tl = luma[above + x - 1] & 0xff;
+                final int tc = luma[above + x] & 0xff;
+                final int tr = luma[above + x + 1] & 0xff;
+                final int ml = luma[row + x - 1] & 0xff;
+                final int mr = luma[row + x + 1] & 0xff;
+                final int bl = luma[below + x - 1] & 0xff;
+                final int bc = luma[below + x] & 0xff;
+                final int br = luma[below + x + 1] & 0xff;
+
+                final int gx = (tr + 2 * mr + br) - (tl + 2 * ml + bl);
+                final int gy = (bl + 2 * bc + br) - (tl + 2 * tc + tr);
+                final int magnitude = Math.abs(gx) + Math.abs(gy);
+                pixels[row + x] = (magnitude > mThreshold) ? mEdgeColor : 0;
+            }
+            pixels[row + width - 1] = 0;
+        }
+    }
+
+    private class Band implements Runnable {
+        private final int mStart;
+        private final int mEnd;
+        private final boolean mSignal;
+
+        public Band(int start, int end, boolean signal) {
+            mStart = start;
+            mEnd = end;
+            mSignal = signal;
+        }
+
+        @Override public void run() {
+            try {
+                detectRows(mStart, mEnd);
+            } finally {
+                if (mSignal) {
+                    mBandsDone.release();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Matrix;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.widget.ImageView;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives YUV frames from the camera, runs them through the {@link EdgeDetector} and shows the
+ * outlines in an {@link ImageView}, which scales the small bitmap up to the overlay.
+ * <p>
+ * Frames are processed on a background thread into two bitmaps which get swapped on the UI
+ * thread. While a swap is pending new frames are dropped instead of queued.
+ */
+public class EdgeRenderer implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = "EdgeRenderer";
+
+    /** Downsampling factor from the YUV stream to the edge map */
+    private static final int DOWNSAMPLE = 2;
+    /** The YUV stream should be about this wide, the edge map is a fraction of it */
+    private static final int TARGET_WIDTH = 640;
+    private static final int EDGE_THRESHOLD = 160;
+    private static final int EDGE_COLOR = 0xffffffff;
+
+    private final ImageView mView;
+    private final ImageReader mImageReader;
+    private final HandlerThread mThread;
+    private final EdgeDetector mDetector;
+
+    private final byte[] mRow;
+    private final byte[] mLuma;
+    private final int[] mPixels;
+    private final Bitmap[] mBitmaps = new Bitmap[2];
+    private int mBackBitmap;
+
+    private final AtomicBoolean mSwapPending = new AtomicBoolean(false);
+    private volatile int mFrameInterval = 1;
+    private int mFrameCount;
+    private final Matrix mMatrix = new Matrix();
+
+    public EdgeRenderer(ImageView view, Size yuvSize) {
+        mView = view;
+
+        final int width = yuvSize.getWidth() / DOWNSAMPLE;
+        final int height = yuvSize.getHeight() / DOWNSAMPLE;
+        mDetector = new EdgeDetector(width, height, EDGE_THRESHOLD, EDGE_COLOR, 0);
+        mRow = new byte[yuvSize.getWidth()];
+        mLuma = new byte[width * height];
+        mPixels = new int[width * height];
+        mBitmaps[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        mBitmaps[1] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+
+        mThread = new HandlerThread("OnTheGoEdgeRenderer");
+        mThread.start();
+        mImageReader = ImageReader.newInstance(yuvSize.getWidth(), yuvSize.getHeight(),
+                ImageFormat.YUV_420_888, 2);
+        mImageReader.setOnImageAvailableListener(this, new Handler(mThread.getLooper()));
+    }
+
+    /**
+     * @param choices The supported YUV_420_888 output sizes
+     * @param aspect  A size with the aspect ratio of the preview
+     * @param scale   Scale of {@link #TARGET_WIDTH}, eg to stream less while running hot
+     * @return The smallest size with the preview aspect ratio which is at least the scaled
+     * {@link #TARGET_WIDTH} wide, or the smallest available size
+     */
+    public static Size chooseYuvSize(Size[] choices, Size aspect, float scale) {
+        final int targetWidth = Math.round(TARGET_WIDTH * scale);
+        Size best = null;
+        Size smallest = null;
+        final OnTheGoService.CompareSizesByArea comparator =
+                new OnTheGoService.CompareSizesByArea();
+        for (Size option : choices) {
+            if (smallest == null || comparator.compare(option, smallest) < 0) {
+                smallest = option;
+            }
+            final boolean sameAspect = (long) option.getHeight() * aspect.getWidth()
+                    == (long) option.getWidth() * aspect.getHeight();
+            if (sameAspect && option.getWidth() >= targetWidth
+                    && (best == null || comparator.compare(option, best) < 0)) {
+                best = option;
+            }
+        }
+        return (best != null) ? best : smallest;
+    }
+
+    /**
+     * @param interval Only every n-th frame gets processed, the others are dropped
+     */
+    public void setFrameInterval(int interval) {
+        mFrameInterval = Math.max(1, interval);
+    }
+
+    public Surface getSurface() {
+        return mImageReader.getSurface();
+    }
+
+    /**
+     * Scales the edge map to cover the view, rotated from sensor into display orientation.
+     *
+     * @param viewWidth  The width of the view
+     * @param viewHeight The height of the view
+     * @param rotation   The clockwise rotation in degrees from sensor to display orientation
+     * @param mirror     Whether the image needs to be mirrored, eg for the front camera
+     */
+    public void configure(int viewWidth, int viewHeight, int rotation, boolean mirror) {
+        final float width = mDetector.getWidth();
+        final float height = mDetector.getHeight();
+        final boolean swapped = (rotation % 180) != 0;
+        final float rotatedWidth = swapped ? height : width;
+        final float rotatedHeight = swapped ? width : height;
+        final float scale = Math.max(viewWidth / rotatedWidth, viewHeight / rotatedHeight);
+
+        mMatrix.reset();
+        mMatrix.postTranslate(-width / 2f, -height / 2f);
+        mMatrix.postRotate(rotation);
+        mMatrix.postScale(mirror ? -scale : scale, scale);
+        mMatrix.postTranslate(viewWidth / 2f, viewHeight / 2f);
+
+        mView.setScaleType(ImageView.ScaleType.MATRIX);
+        mView.setImageMatrix(mMatrix);
+    }
+
+    @Override public void onImageAvailable(ImageReader reader) {
+        final Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException ise) {
+            // already released
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+
+        try {
+            if (mSwapPending.get()) {
+                // the ui did not catch up yet, drop the frame
+                return;
+            }
+            if (++mFrameCount % mFrameInterval != 0) {
+                return;
+            }
+            copyLuma(image.getPlanes()[0]);
+        } finally {
+            image.close();
+        }
+
+        mDetector.detect(mLuma, mPixels);
+
+        final Bitmap bitmap = mBitmaps[mBackBitmap];
+        bitmap.setPixels(mPixels, 0, mDetector.getWidth(), 0, 0,
+                mDetector.getWidth(), mDetector.getHeight());
+        mSwapPending.set(true);
+        mView.post(mSwapRunnable);
+    }
+
+    private void copyLuma(Image.Plane plane) {
+        final ByteBuffer buffer = plane.getBuffer();
+        final int rowStride = plane.getRowStride();
+        final int pixelStride = plane.getPixelStride();
+        final int width = mDetector.getWidth();
+        final int height = mDetector.getHeight();
+
+        for (int y = 0; y < height; y++) {
+            final int offset = y * DOWNSAMPLE * rowStride;
+            if (offset >= buffer.limit()) {
+                break;
+            }
+            buffer.position(offset);
+            buffer.get(mRow, 0, Math.min(mRow.length, buffer.remaining()));
+
+            final int row = y * width;
+            for (int x = 0; x < width; x++) {
+                final int source = x * DOWNSAMPLE * pixelStride;
+                mLuma[row + x] = (source < mRow.length) ? mRow[source] : 0;
+            }
+        }
+    }
+
+    private final Runnable mSwapRunnable = new Runnable() {
+        @Override public void run() {
+            mView.setImageBitmap(mBitmaps[mBackBitmap]);
+            mBackBitmap = 1 - mBackBitmap;
+            mSwapPending.set(false);
+        }
+    };
+
+    public void release() {
+        mImageReader.setOnImageAvailableListener(null, null);
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Interrupted while waiting for the renderer to finish");
+        }
+        mImageReader.close();
+        mDetector.release();
+        mView.removeCallbacks(mSwapRunnable);
+        mView.setImageBitmap(null);
+    }
+
+}
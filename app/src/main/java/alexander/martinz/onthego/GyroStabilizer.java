@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+/**
+ * Software stabilization based on gyroscope samples.
+ * <p>
+ * Gyroscope rates get integrated into a history of device orientations, which allows looking
+ * up the orientation at the exact sensor timestamp of a frame, even if the samples arrive
+ * batched and after the frame. The intended camera path is a low-pass filtered version of the
+ * orientation, the difference between both is the correction to apply to the frame.
+ * <p>
+ * Angles use a small angle approximation per axis, which is fine for the hand shake we want to
+ * remove. Nothing in here allocates after construction, as it runs for every frame and every
+ * gyroscope sample. It also does not depend on any Android classes, so recorded gyroscope
+ * traces can be replayed through it on the JVM.
+ */
+public class GyroStabilizer {
+    private static final int HISTORY_SIZE = 512;
+    private static final float NS_TO_S = 1.0f / 1000000000.0f;
+    /** Do not integrate across gaps larger than this, eg after the sensor got paused */
+    private static final long MAX_SAMPLE_GAP_NS = 100000000L;
+    /** Do not extrapolate the last rate further than this into the future */
+    private static final long MAX_EXTRAPOLATION_NS = 50000000L;
+
+    private final long[] mTimestamps = new long[HISTORY_SIZE];
+    private final float[] mAngles = new float[HISTORY_SIZE * 3];
+    private int mNewest = -1;
+    private int mCount;
+
+    private final float[] mLastRate = new float[3];
+
+    private final float[] mActual = new float[3];
+    private final float[] mSmoothed = new float[3];
+    private final float[] mCorrection = new float[3];
+    private long mLastFrameTimestamp = -1;
+
+    private final float mTimeConstant;
+    private final float mMaxCorrection;
+
+    /**
+     * @param timeConstant  The time constant of the low-pass filter in seconds, the higher
+     *                      the smoother the resulting path
+     * @param maxCorrection The maximum correction per axis in radians
+     */
+    public GyroStabilizer(float timeConstant, float maxCorrection) {
+        mTimeConstant = timeConstant;
+        mMaxCorrection = maxCorrection;
+    }
+
+    public void reset() {
+        mNewest = -1;
+        mCount = 0;
+        mLastFrameTimestamp = -1;
+        for (int i = 0; i < 3; i++) {
+            mLastRate[i] = 0f;
+            mSmoothed[i] = 0f;
+            mCorrection[i] = 0f;
+        }
+    }
+
+    /**
+     * @param timestamp The timestamp of the sample in nanoseconds
+     * @param x         The angular rate around the x axis in rad/s
+     * @param y         The angular rate around the y axis in rad/s
+     * @param z         The angular rate around the z axis in rad/s
+     */
+    public void addSample(long timestamp, float x, float y, float z) {
+        if (mCount == 0) {
+            store(timestamp, 0f, 0f, 0f);
+        } else {
+            final long previous = mTimestamps[mNewest];
+            if (timestamp <= previous) {
+                return;
+            }
+
+            final long gap = timestamp - previous;
+            final float dt = (gap > MAX_SAMPLE_GAP_NS) ? 0f : gap * NS_TO_S;
+            final int base = mNewest * 3;
+            store(timestamp,
+                    mAngles[base] + x * dt,
+                    mAngles[base + 1] + y * dt,
+                    mAngles[base + 2] + z * dt);
+        }
+        mLastRate[0] = x;
+        mLastRate[1] = y;
+        mLastRate[2] = z;
+    }
+
+    private void store(long timestamp, float x, float y, float z) {
+        mNewest = (mNewest + 1) % HISTORY_SIZE;
+        mTimestamps[mNewest] = timestamp;
+        final int base = mNewest * 3;
+        mAngles[base] = x;
+        mAngles[base + 1] = y;
+        mAngles[base + 2] = z;
+        if (mCount < HISTORY_SIZE) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Updates the correction for the frame with the given sensor timestamp.
+     *
+     * @param frameTimestamp The sensor timestamp of the frame, in the same time base as the
+     *                       gyroscope samples
+     * @return False if there are no gyroscope samples yet
+     */
+    public boolean update(long frameTimestamp) {
+        if (mCount == 0) {
+            return false;
+        }
+
+        angleAt(frameTimestamp, mActual);
+        if (mLastFrameTimestamp < 0 || frameTimestamp <= mLastFrameTimestamp) {
+            // (re)start the path at the current orientation
+            for (int i = 0; i < 3; i++) {
+                mSmoothed[i] = mActual[i];
+            }
+        } else {
+            final float dt = (frameTimestamp - mLastFrameTimestamp) * NS_TO_S;
+            final float k = dt / (mTimeConstant + dt);
+            for (int i = 0; i < 3; i++) {
+                mSmoothed[i] += k * (mActual[i] - mSmoothed[i]);
+            }
+        }
+        mLastFrameTimestamp = frameTimestamp;
+
+        for (int i = 0; i < 3; i++) {
+            final float correction = mSmoothed[i] - mActual[i];
+            if (correction > mMaxCorrection || correction < -mMaxCorrection) {
+                // Hitting the limit means we are lagging behind an intended movement,
+                // pull the path along instead of sticking to the border.
+                final float limit = (correction > 0) ? mMaxCorrection : -mMaxCorrection;
+                mSmoothed[i] = mActual[i] + limit;
+                mCorrection[i] = limit;
+            } else {
+                mCorrection[i] = correction;
+            }
+        }
+        return true;
+    }
+
+    private void angleAt(long timestamp, float[] out) {
+        final long newestTimestamp = mTimestamps[mNewest];
+        if (timestamp >= newestTimestamp) {
+            final long ahead = Math.min(timestamp - newestTimestamp, MAX_EXTRAPOLATION_NS);
+            final float dt = ahead * NS_TO_S;
+            final int base = mNewest * 3;
+            for (int i = 0; i < 3; i++) {
+                out[i] = mAngles[base + i] + mLastRate[i] * dt;
+            }
+            return;
+        }
+
+        // walk back from the newest sample, frames are usually close to it
+        int newer = mNewest;
+        for (int n = 1; n < mCount; n++) {
+            final int older = (newer - 1 + HISTORY_SIZE) % HISTORY_SIZE;
+            final long olderTimestamp = mTimestamps[older];
+            if (olderTimestamp <= timestamp) {
+                final float f = (float) (timestamp - olderTimestamp)
+                        / (float) (mTimestamps[newer] - olderTimestamp);
+                final int olderBase = older * 3;
+                final int newerBase = newer * 3;
+                for (int i = 0; i < 3; i++) {
+                    out[i] = mAngles[olderBase + i]
+                            + f * (mAngles[newerBase + i] - mAngles[olderBase + i]);
+                }
+                return;
+            }
+            newer = older;
+        }
+
+        // older than anything we remember
+        final int base = newer * 3;
+        for (int i = 0; i < 3; i++) {
+            out[i] = mAngles[base + i];
+        }
+    }
+
+    /**
+     * @return The newest gyroscope timestamp in nanoseconds or -1 if there is none
+     */
+    public long getNewestTimestamp() {
+        return (mCount == 0) ? -1 : mTimestamps[mNewest];
+    }
+
+    /**
+     * @return The correction around the x axis (pitch) in radians
+     */
+    public float getCorrectionX() {
+        return mCorrection[0];
+    }
+
+    /**
+     * @return The correction around the y axis (yaw) in radians
+     */
+    public float getCorrectionY() {
+        return mCorrection[1];
+    }
+
+    /**
+     * @return The correction around the z axis (roll) in radians
+     */
+    public float getCorrectionZ() {
+        return mCorrection[2];
+    }
+
+}
@@ -26,9 +26,11 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.SeekBar;
+import android.widget.Spinner;
 import android.widget.Switch;
 
 public class OnTheGoDialog extends Activity implements View.OnClickListener {
@@ -39,6 +41,13 @@ public class OnTheGoDialog extends Activity implements View.OnClickListener {
     private Button mToggleOnTheGo;
     private SeekBar mTransparency;
     private Switch mToggleFrontCamera;
+    private SeekBar mOverlayHeight;
+    private Spinner mOverlayAnchor;
+    private Switch mToggleDraggable;
+    private Switch mToggleStabilization;
+    private Switch mToggleEdges;
+    private Switch mTogglePrewarm;
+    private Switch mTogglePrewarmProximity;
 
     private OnTheGoService.OnTheGoBinder mBinder;
 
@@ -93,6 +102,102 @@ public class OnTheGoDialog extends Activity implements View.OnClickListener {
             mToggleFrontCamera.setVisibility(View.GONE);
         }
 
+        final OverlayGeometry geometry = OverlayGeometry.fromSettings(this);
+        mOverlayHeight = (SeekBar) v.findViewById(R.id.overlay_height_bar);
+        // rounded, a truncated progress would shrink the stored height on every save
+        mOverlayHeight.setProgress(
+                Math.round((geometry.heightFraction - OverlayGeometry.HEIGHT_MIN) * 100));
+        mOverlayHeight.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) { }
+
+            @Override public void onStartTrackingTouch(SeekBar seekBar) {
+
+            }
+
+            @Override public void onStopTrackingTouch(SeekBar seekBar) {
+                // resizing reconfigures the camera stream, so only do it once the user is done
+                updateOverlayGeometry(false);
+            }
+        });
+
+        mOverlayAnchor = (Spinner) v.findViewById(R.id.overlay_anchor);
+        mOverlayAnchor.setSelection(geometry.anchor);
+        mOverlayAnchor.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position != OverlayGeometry.fromSettings(OnTheGoDialog.this).anchor) {
+                    updateOverlayGeometry(true);
+                }
+            }
+
+            @Override public void onNothingSelected(AdapterView<?> parent) { }
+        });
+
+        mToggleDraggable = (Switch) v.findViewById(R.id.overlay_draggable_toggle);
+        mToggleDraggable.setChecked(geometry.draggable);
+        mToggleDraggable.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                updateOverlayGeometry(false);
+            }
+        });
+
+        mToggleStabilization = (Switch) v.findViewById(R.id.stabilization_toggle);
+        mToggleStabilization.setChecked(
+                Settings.get(this).getBoolean(Settings.KEY_ONTHEGO_STABILIZATION, false));
+        mToggleStabilization.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                        Settings.get(OnTheGoDialog.this)
+                                .setBoolean(Settings.KEY_ONTHEGO_STABILIZATION, isChecked);
+
+                        if (mBinder != null && mBinder.getService() != null) {
+                            mBinder.getService().restartOnTheGo();
+                        }
+                    }
+                });
+
+        mToggleEdges = (Switch) v.findViewById(R.id.edges_toggle);
+        mToggleEdges.setChecked(Settings.get(this).getInt(Settings.KEY_ONTHEGO_RENDER_MODE,
+                OnTheGoService.RENDER_MODE_PREVIEW) == OnTheGoService.RENDER_MODE_EDGES);
+        mToggleEdges.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                final int value = isChecked
+                        ? OnTheGoService.RENDER_MODE_EDGES
+                        : OnTheGoService.RENDER_MODE_PREVIEW;
+                Settings.get(OnTheGoDialog.this).setInt(Settings.KEY_ONTHEGO_RENDER_MODE, value);
+
+                if (mBinder != null && mBinder.getService() != null) {
+                    mBinder.getService().restartOnTheGo();
+                }
+            }
+        });
+
+        final boolean prewarm = Settings.get(this).getBoolean(Settings.KEY_ONTHEGO_PREWARM, false);
+        mTogglePrewarm = (Switch) v.findViewById(R.id.prewarm_toggle);
+        mTogglePrewarm.setChecked(prewarm);
+        mTogglePrewarm.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                Settings.get(OnTheGoDialog.this)
+                        .setBoolean(Settings.KEY_ONTHEGO_PREWARM, isChecked);
+                mTogglePrewarmProximity.setEnabled(isChecked);
+            }
+        });
+
+        mTogglePrewarmProximity = (Switch) v.findViewById(R.id.prewarm_proximity_toggle);
+        mTogglePrewarmProximity.setChecked(
+                Settings.get(this).getBoolean(Settings.KEY_ONTHEGO_PREWARM_PROXIMITY, false));
+        mTogglePrewarmProximity.setEnabled(prewarm);
+        mTogglePrewarmProximity.setOnCheckedChangeListener(
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                        Settings.get(OnTheGoDialog.this)
+                                .setBoolean(Settings.KEY_ONTHEGO_PREWARM_PROXIMITY, isChecked);
+                    }
+                });
+
         final Intent intent = new Intent(OnTheGoDialog.this, OnTheGoService.class);
         bindService(intent, mServiceConnection, Context.BIND_ABOVE_CLIENT);
 
@@ -138,6 +243,19 @@ public class OnTheGoDialog extends Activity implements View.OnClickListener {
         }
     }
 
+    private void updateOverlayGeometry(boolean resetOffset) {
+        final float height = OverlayGeometry.HEIGHT_MIN + (mOverlayHeight.getProgress() / 100.0f);
+        final int offset = resetOffset ? 0 : OverlayGeometry.fromSettings(this).offset;
+        final OverlayGeometry geometry = new OverlayGeometry(
+                mOverlayAnchor.getSelectedItemPosition(), height, offset,
+                mToggleDraggable.isChecked());
+        geometry.persist(this);
+
+        if (mBinder != null && mBinder.getService() != null) {
+            mBinder.getService().setOverlayGeometry(geometry);
+        }
+    }
+
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override public void onServiceConnected(ComponentName name, IBinder service) {
             mBinder = (OnTheGoService.OnTheGoBinder) service;
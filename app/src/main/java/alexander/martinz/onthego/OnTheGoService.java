@@ -16,6 +16,7 @@
 
 package alexander.martinz.onthego;
 
+import android.app.KeyguardManager;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -25,37 +26,49 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.PixelFormat;
+import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
-import android.os.Binder;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Size;
+import android.view.MotionEvent;
 import android.view.Surface;
 import android.view.TextureView;
+import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
+import android.widget.ImageView;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
 
 public class OnTheGoService extends Service {
     private static final String TAG = "OnTheGoService";
@@ -64,58 +77,247 @@ public class OnTheGoService extends Service {
     public static final int CAMERA_BACK = 0;
     public static final int CAMERA_FRONT = 1;
 
+    public static final int RENDER_MODE_PREVIEW = 0;
+    public static final int RENDER_MODE_EDGES = 1;
+
     private static final int ONTHEGO_NOTIFICATION_ID = 81333378;
 
     public static final String ACTION_START = "start";
     public static final String ACTION_STOP = "stop";
+    public static final String ACTION_SWITCH_CAMERA = "switch_camera";
+    public static final String ACTION_ALPHA_UP = "alpha_up";
+    public static final String ACTION_ALPHA_DOWN = "alpha_down";
+    public static final String ACTION_PAUSE = "pause";
+
+    public static final float ALPHA_MAX = 0.8f;
+    private static final float ALPHA_STEP = 0.1f;
 
     private static final int NOTIFICATION_STARTED = 0;
     private static final int NOTIFICATION_RESTART = 1;
     private static final int NOTIFICATION_ERROR = 2;
 
+    private static final int GYRO_SAMPLING_PERIOD_US = 5000;
+    private static final int GYRO_MAX_REPORT_LATENCY_US = 20000;
+    private static final float STABILIZATION_TIME_CONSTANT = 0.4f;
+    private static final float STABILIZATION_MAX_CORRECTION = 0.05f;
+    /** Zoom applied while stabilizing, the margin is what we can shift the preview by */
+    private static final float STABILIZATION_OVERSCAN = 1.1f;
+    private static final long CLOCK_MISMATCH_NS = 1000000000L;
+    /** Captured frames to remember, more than can be queued between capture and display */
+    private static final int CAPTURED_FRAME_HISTORY = 16;
+
+    /** Scale of the requested preview size once the thermal ladder reduces the resolution */
+    private static final float THERMAL_RESOLUTION_SCALE = 0.5f;
+    /** Only every n-th frame gets edge detected once the ladder reduces the analysis */
+    private static final int THERMAL_EDGE_FRAME_INTERVAL = 2;
+
+    /** Listeners get at most one state event per interval, changes in between are merged */
+    private static final long STATE_EVENT_INTERVAL = 100;
+    private static final long FRAME_STATS_INTERVAL = 1000;
+
+    /** A warm up which is not revealed within this gets cancelled */
+    static final long PREWARM_DEADLINE = 8000;
+
     private final Handler mHandler = new Handler();
     private final Object mRestartObject = new Object();
 
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private CameraBackend mCameraBackend;
+    /** Bumped on every release, callbacks of older opens close their device right away */
+    private int mCameraGeneration;
+    /** The camera is open or opening, possibly before the texture view got its surface */
+    private boolean mCameraRequested;
 
     private String mCameraId;
+    private CameraInfo mCameraInfo;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
+    private CaptureRequest mPreviewRequest;
 
     private TextureView mTextureView;
+    private SurfaceTexture mSurfaceTexture;
+    private Surface mPreviewSurface;
+    private int mViewWidth;
+    private int mViewHeight;
     private Size mPreviewSize;
+    /** The size the current session got configured with */
+    private Size mStreamSize;
+    private int mCameraType;
+
+    private int mRenderMode;
+    private ImageView mEdgeView;
+    private EdgeRenderer mEdgeRenderer;
+
+    private boolean mSoftwareStabilization;
+    private boolean mSoftwareStabilizationWanted;
+    private boolean mGyroRegistered;
+    private long mFrameTimestampOffset;
+    private final long[] mCapturedFrames = new long[CAPTURED_FRAME_HISTORY];
+    private int mCapturedFrameCount;
+    private final GyroStabilizer mStabilizer = new GyroStabilizer(
+            STABILIZATION_TIME_CONSTANT, STABILIZATION_MAX_CORRECTION);
+
+    private final Matrix mBaseTransform = new Matrix();
+    private final Matrix mStabilizedTransform = new Matrix();
+    private int mDisplayRotation;
+    private float mPixelsPerRadian;
+    private float mMaxShiftX;
+    private float mMaxShiftY;
+    private float mViewCenterX;
+    private float mViewCenterY;
+
+    private SessionTelemetry mTelemetry;
+    private final SessionTimings mTimings = new SessionTimings();
+
+    private final PrewarmTracker mPrewarm = new PrewarmTracker();
+    private boolean mProximityRegistered;
+    private boolean mProximityNear;
+
+    /**
+     * The camera may get released while it is still opening, eg on a restart or when the screen
+     * turns off. Instead of blocking until the open finished, every open gets its own callback
+     * which closes the device again if it got released in the meantime.
+     */
+    private CameraDevice.StateCallback createStateCallback(final int generation) {
+        return new CameraDevice.StateCallback() {
+
+            @Override
+            public void onOpened(CameraDevice cameraDevice) {
+                if (generation != mCameraGeneration) {
+                    logDebug("Camera got released while opening, closing it");
+                    cameraDevice.close();
+                    return;
+                }
+                // This method is called when the camera is opened.  We start camera preview here.
+                mTimings.onOpened(SystemClock.elapsedRealtime());
+                mCameraDevice = cameraDevice;
+                createCameraPreviewSession();
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice cameraDevice) {
+                cameraDevice.close();
+                if (generation != mCameraGeneration) {
+                    return;
+                }
+                mCameraDevice = null;
+                mTimings.onError(SessionTelemetry.ERROR_DISCONNECTED);
+                recordSessionStart();
+            }
+
+            @Override
+            public void onError(CameraDevice cameraDevice, int error) {
+                cameraDevice.close();
+                if (generation != mCameraGeneration) {
+                    return;
+                }
+                mCameraDevice = null;
+                mTimings.onError(error);
+                recordSessionStart();
+                stopOnTheGo(false);
+            }
+
+        };
+    }
+
+    private FrameLayout mOverlay;
+    private WindowManager.LayoutParams mOverlayParams;
+    private OverlayGeometry mGeometry;
+    /** Between start and stop, the restart and error notifications outlive this */
+    private boolean mRunning;
+    private NotificationManager mNotificationManager;
+    private Notification.Builder mNotificationBuilder;
+    private Notification.Action mPauseAction;
+
+    private final PreviewPauseController mPauseController = new PreviewPauseController(
+            new PreviewPauseController.Listener() {
+                @Override
+                public void onPreviewPaused() {
+                    logDebug("Pausing preview");
+                    stopRepeating();
+                    stopGyroscope();
+                    notifyStateChanged();
+                }
 
-    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+                @Override
+                public void onPreviewResumed() {
+                    logDebug("Resuming preview");
+                    if (mSoftwareStabilization) {
+                        startGyroscope();
+                    }
+                    startRepeating();
+                    notifyStateChanged();
+                }
+            });
 
+    private final ThermalLadder mThermalLadder = new ThermalLadder(new ThermalLadder.Listener() {
         @Override
-        public void onOpened(CameraDevice cameraDevice) {
-            // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
-            mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+        public void onLevelChanged(int oldLevel, int newLevel, int temperature) {
+            // always logged, the thresholds need tuning per device
+            Log.i(TAG, "Thermal level " + ThermalLadder.levelToString(oldLevel) + " -> "
+                    + ThermalLadder.levelToString(newLevel) + " at " + (temperature / 10f) + "C");
+            applyThermalLevel(oldLevel, newLevel);
+            notifyStateChanged();
         }
+    });
 
+    private final RemoteCallbackList<IOnTheGoListener> mListeners = new RemoteCallbackList<>();
+    private boolean mStateEventPending;
+    private long mLastStateEventAt;
+    private boolean mFrameStatsRunning;
+    private long mFrameStatsAt;
+    private long mFrameStatsCount;
+
+    private final CommandCoalescer mCommands = new CommandCoalescer(new Executor() {
         @Override
-        public void onDisconnected(CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
+        public void execute(Runnable command) {
+            mHandler.post(command);
         }
-
+    }, new CommandCoalescer.Target() {
         @Override
-        public void onError(CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
-            mCameraDevice = null;
-            stopOnTheGo(false);
+        public void applyCamera(int cameraType) {
+            if (cameraType != CAMERA_BACK && cameraType != CAMERA_FRONT) {
+                return;
+            }
+            final Settings settings = Settings.get(OnTheGoService.this);
+            if (cameraType == settings.getInt(Settings.KEY_ONTHEGO_CAMERA, CAMERA_BACK)
+                    || (cameraType == CAMERA_FRONT && !Utils.hasFrontCamera(OnTheGoService.this))) {
+                return;
+            }
+            settings.setInt(Settings.KEY_ONTHEGO_CAMERA, cameraType);
+            if (mRunning) {
+                restartOnTheGo();
+            }
         }
 
-    };
+        @Override
+        public void applyGeometry(OverlayGeometry geometry) {
+            geometry.persist(OnTheGoService.this);
+            setOverlayGeometry(geometry);
+        }
 
-    private FrameLayout mOverlay;
-    private NotificationManager mNotificationManager;
+        @Override
+        public void applyAlpha(float alpha) {
+            // same range as the dialog and the notification actions
+            alpha = Math.max(0f, Math.min(ALPHA_MAX, alpha));
+            Settings.get(OnTheGoService.this).setFloat(Settings.KEY_ONTHEGO_ALPHA, alpha);
+            setAlpha(alpha);
+            updateNotification();
+        }
 
-    public class OnTheGoBinder extends Binder {
+        @Override
+        public void applyPaused(boolean paused) {
+            if (mRunning) {
+                setPaused(paused);
+            }
+        }
+    });
+
+    /**
+     * Local clients can get to the service itself, remote ones go through the oneway
+     * {@link IOnTheGoService} interface. Binder calls only hand the commands over, they never
+     * wait for the main thread. Values no local control could produce get dropped here.
+     */
+    public class OnTheGoBinder extends IOnTheGoService.Stub {
         private final OnTheGoService mService;
 
         public OnTheGoBinder(OnTheGoService service) {
@@ -125,6 +327,92 @@ public class OnTheGoService extends Service {
         public OnTheGoService getService() {
             return mService;
         }
+
+        /**
+         * @return The aggregated session telemetry of this device or null if not loaded yet
+         */
+        public SessionTelemetry.Summary getTelemetrySummary() {
+            return mService.getTelemetrySummary();
+        }
+
+        @Override
+        public void setAlpha(float alpha) {
+            if (Float.isNaN(alpha)) {
+                logDebug("Ignoring invalid alpha");
+                return;
+            }
+            mCommands.setAlpha(alpha);
+        }
+
+        @Override
+        public void setCamera(int cameraType) {
+            mCommands.setCamera(cameraType);
+        }
+
+        @Override
+        public void setPaused(boolean paused) {
+            mCommands.setPaused(paused);
+        }
+
+        @Override
+        public void setGeometry(int anchor, float heightFraction, int offset, boolean draggable) {
+            if (!OverlayGeometry.isValid(anchor, heightFraction)) {
+                logDebug("Ignoring invalid geometry");
+                return;
+            }
+            mCommands.setGeometry(new OverlayGeometry(anchor, heightFraction, offset, draggable));
+        }
+
+        @Override
+        public void applyCommands(Bundle commands) {
+            if (commands == null) {
+                return;
+            }
+
+            // invalid values drop their command, the others still apply
+            OverlayGeometry geometry = null;
+            if (commands.containsKey(CommandCoalescer.KEY_GEOMETRY_ANCHOR)) {
+                final int anchor = commands.getInt(CommandCoalescer.KEY_GEOMETRY_ANCHOR);
+                final float height = commands.getFloat(CommandCoalescer.KEY_GEOMETRY_HEIGHT,
+                        OverlayGeometry.HEIGHT_MAX);
+                if (OverlayGeometry.isValid(anchor, height)) {
+                    geometry = new OverlayGeometry(anchor, height,
+                            commands.getInt(CommandCoalescer.KEY_GEOMETRY_OFFSET),
+                            commands.getBoolean(CommandCoalescer.KEY_GEOMETRY_DRAGGABLE));
+                } else {
+                    logDebug("Ignoring invalid geometry");
+                }
+            }
+            Float alpha = null;
+            if (commands.containsKey(CommandCoalescer.KEY_ALPHA)) {
+                alpha = commands.getFloat(CommandCoalescer.KEY_ALPHA);
+                if (alpha.isNaN()) {
+                    logDebug("Ignoring invalid alpha");
+                    alpha = null;
+                }
+            }
+            mCommands.set(
+                    alpha,
+                    commands.containsKey(CommandCoalescer.KEY_CAMERA)
+                            ? commands.getInt(CommandCoalescer.KEY_CAMERA) : null,
+                    commands.containsKey(CommandCoalescer.KEY_PAUSED)
+                            ? commands.getBoolean(CommandCoalescer.KEY_PAUSED) : null,
+                    geometry);
+        }
+
+        @Override
+        public void registerListener(IOnTheGoListener listener) {
+            if (listener != null && mListeners.register(listener)) {
+                mHandler.post(mListenerRegisteredRunnable);
+            }
+        }
+
+        @Override
+        public void unregisterListener(IOnTheGoListener listener) {
+            if (listener != null) {
+                mListeners.unregister(listener);
+            }
+        }
     }
 
     @Override
@@ -132,19 +420,65 @@ public class OnTheGoService extends Service {
         return new OnTheGoBinder(this);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mTelemetry = new SessionTelemetry(new File(getFilesDir(), "telemetry"));
+        mCameraBackend = new SystemCameraBackend(this);
+    }
+
     @Override
     public void onDestroy() {
         unregisterReceivers(false);
         resetViews();
+        mTelemetry.release();
+        mListeners.kill();
+        mHandler.removeCallbacks(mStateEventRunnable);
+        mHandler.removeCallbacks(mFrameStatsRunnable);
+        mHandler.removeCallbacks(mPrewarmDeadlineRunnable);
+        stopProximity();
         super.onDestroy();
     }
 
+    public SessionTelemetry.Summary getTelemetrySummary() {
+        return mTelemetry.getSummary();
+    }
+
+    // the hooks below are for tests only, they run the service against a fake camera
+
+    void setCameraBackend(CameraBackend backend) {
+        mCameraBackend = backend;
+    }
+
+    View getOverlay() {
+        return mOverlay;
+    }
+
+    TextureView getTextureView() {
+        return mTextureView;
+    }
+
+    Size getConfiguredStreamSize() {
+        return mStreamSize;
+    }
+
+    SessionTimings getSessionTimings() {
+        return mTimings;
+    }
+
+    PrewarmTracker getPrewarmTracker() {
+        return mPrewarm;
+    }
+
     private void registerReceivers(boolean isScreenOn) {
         if (!isScreenOn) {
             final IntentFilter screenFilter = new IntentFilter();
             screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
             screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+            screenFilter.addAction(Intent.ACTION_USER_PRESENT);
             registerReceiver(mScreenReceiver, screenFilter);
+            // keeps tracking the temperature while the screen is off, to know when we cooled down
+            registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
         }
     }
 
@@ -153,9 +487,27 @@ public class OnTheGoService extends Service {
             try {
                 unregisterReceiver(mScreenReceiver);
             } catch (Exception ignored) { }
+            try {
+                unregisterReceiver(mBatteryReceiver);
+            } catch (Exception ignored) { }
         }
     }
 
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent == null) {
+                return;
+            }
+
+            final int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                    ThermalLadder.UNKNOWN_TEMPERATURE);
+            if (temperature != ThermalLadder.UNKNOWN_TEMPERATURE) {
+                mThermalLadder.setTemperature(temperature, SystemClock.elapsedRealtime());
+            }
+        }
+    };
+
     private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -168,11 +520,34 @@ public class OnTheGoService extends Service {
                 if (action != null && !action.isEmpty()) {
                     logDebug("mScreenReceiver: " + action);
                     if (Intent.ACTION_SCREEN_ON.equals(action)) {
-                        setupViews(true);
+                        stopProximity();
+                        updateCovered();
+                        if (mPrewarm.isWarming()) {
+                            // already warming up since the phone left the pocket
+                            if (!isKeyguardLocked()) {
+                                revealPrewarm();
+                            }
+                        } else if (isPrewarmEnabled() && isKeyguardLocked()) {
+                            startPrewarm(PrewarmTracker.TRIGGER_SCREEN_ON);
+                        } else {
+                            beginSession(SessionTelemetry.EVENT_SCREEN_ON);
+                            setupViews(true);
+                        }
                         registerReceivers(true);
+                    } else if (Intent.ACTION_USER_PRESENT.equals(action)) {
+                        updateCovered();
+                        if (mPrewarm.isWarming()) {
+                            revealPrewarm();
+                        } else if (mOverlay == null && isPrewarmEnabled()) {
+                            // the warm up ran out of time, start from scratch
+                            beginSession(SessionTelemetry.EVENT_SCREEN_ON);
+                            setupViews(true);
+                        }
                     } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
                         unregisterReceivers(true);
                         resetViews();
+                        cancelPrewarm();
+                        startProximity();
                     }
                 }
             }
@@ -195,6 +570,18 @@ public class OnTheGoService extends Service {
                 startOnTheGo();
             } else if (action.equals(ACTION_STOP)) {
                 stopOnTheGo(false);
+            } else if (!mRunning) {
+                // controls are only valid while we are running
+                logDebug("Ignoring " + action + " while inactive");
+                stopSelf();
+            } else if (action.equals(ACTION_SWITCH_CAMERA)) {
+                switchCamera();
+            } else if (action.equals(ACTION_ALPHA_UP)) {
+                changeAlpha(ALPHA_STEP);
+            } else if (action.equals(ACTION_ALPHA_DOWN)) {
+                changeAlpha(-ALPHA_STEP);
+            } else if (action.equals(ACTION_PAUSE)) {
+                setPaused(!mPauseController.isUserPaused());
             }
         } else {
             logDebug("Action is NULL or EMPTY!");
@@ -205,28 +592,45 @@ public class OnTheGoService extends Service {
     }
 
     private void startOnTheGo() {
-        if (mNotificationManager != null) {
+        if (mRunning) {
             logDebug("Starting while active, stopping.");
             stopOnTheGo(false);
             return;
         }
 
+        mRunning = true;
         resetViews();
         registerReceivers(false);
+        beginSession(SessionTelemetry.EVENT_START);
         setupViews(false);
 
         createNotification(NOTIFICATION_STARTED);
+        startFrameStats();
+        notifyStateChanged();
     }
 
     private void stopOnTheGo(boolean shouldRestart) {
+        if (mPrewarm.isWarming()) {
+            resetViews();
+            cancelPrewarm();
+        }
+        mRunning = false;
+        stopProximity();
+        recordSessionStop();
         unregisterReceivers(false);
         resetViews();
+        // a bound client may keep this instance alive, the next start must not come up paused
+        mPauseController.setUserPaused(false, SystemClock.elapsedRealtime());
 
         // Cancel notification
         if (mNotificationManager != null) {
             mNotificationManager.cancelAll();
             mNotificationManager = null;
         }
+        mNotificationBuilder = null;
+        mPauseAction = null;
+        stopFrameStats();
+        notifyStateChanged();
 
         if (shouldRestart) {
             createNotification(NOTIFICATION_RESTART);
@@ -257,6 +661,7 @@ public class OnTheGoService extends Service {
         @Override
         public void run() {
             synchronized (mRestartObject) {
+                beginSession(SessionTelemetry.EVENT_RESTART);
                 setupViews(true);
             }
         }
@@ -264,31 +669,91 @@ public class OnTheGoService extends Service {
 
     public void setAlpha(float alpha) {
         if (mOverlay != null) {
-            mOverlay.setAlpha(alpha);
+            // a warming overlay stays invisible until it gets revealed
+            mOverlay.setAlpha(mPrewarm.isWarming() ? 0f : alpha);
+        }
+        mPauseController.setAlpha(alpha, SystemClock.elapsedRealtime());
+        notifyStateChanged();
+    }
+
+    private void changeAlpha(float delta) {
+        float alpha = Settings.get(this).getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f) + delta;
+        alpha = Math.max(0f, Math.min(ALPHA_MAX, alpha));
+        Settings.get(this).setFloat(Settings.KEY_ONTHEGO_ALPHA, alpha);
+        setAlpha(alpha);
+        updateNotification();
+    }
+
+    private void switchCamera() {
+        if (!Utils.hasFrontCamera(this)) {
+            return;
+        }
+        final int current = Settings.get(this).getInt(Settings.KEY_ONTHEGO_CAMERA, CAMERA_BACK);
+        final int next = (current == CAMERA_FRONT) ? CAMERA_BACK : CAMERA_FRONT;
+        Settings.get(this).setInt(Settings.KEY_ONTHEGO_CAMERA, next);
+        restartOnTheGo();
+    }
+
+    public void setPaused(boolean paused) {
+        mPauseController.setUserPaused(paused, SystemClock.elapsedRealtime());
+        updateNotification();
+    }
+
+    public void setOverlayGeometry(OverlayGeometry geometry) {
+        final boolean wasDraggable = (mGeometry != null && mGeometry.draggable);
+        mGeometry = geometry;
+        if (mOverlay == null) {
+            return;
         }
+
+        if (wasDraggable != geometry.draggable) {
+            // the window type changes, which needs the window to be added again
+            synchronized (mRestartObject) {
+                resetViews();
+                beginSession(SessionTelemetry.EVENT_RESTART);
+                setupViews(true);
+            }
+            return;
+        }
+
+        final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+        applyGeometry(wm);
+        wm.updateViewLayout(mOverlay, mOverlayParams);
+    }
+
+    /**
+     * Applies {@link #mGeometry} to the layout params and the touch handling of the overlay.
+     */
+    private void applyGeometry(WindowManager wm) {
+        mGeometry.applyTo(mOverlayParams, getDisplayHeight(wm));
+        mOverlay.setOnTouchListener((mGeometry.draggable && !mGeometry.isFullscreen())
+                ? mDragListener : null);
     }
 
-    private void setUpCameraOutputs(int type, int width, int height, CameraManager manager) {
+    private void setUpCameraOutputs(int type, int width, int height) {
         final boolean hasFrontCamera = Utils.hasFrontCamera(this);
 
         mCameraId = null;
+        mCameraInfo = null;
+        CameraInfo infoBack = null;
+        CameraInfo infoFront = null;
         String cameraIdBack = null;
         String cameraIdFront = null;
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                final CameraCharacteristics info = manager.getCameraCharacteristics(cameraId);
+            for (String cameraId : mCameraBackend.getCameraIdList()) {
+                final CameraInfo info = mCameraBackend.getCameraInfo(cameraId);
 
-                boolean isFront = info.get(CameraCharacteristics.LENS_FACING)
-                        == CameraCharacteristics.LENS_FACING_FRONT;
+                boolean isFront = info.facing == CameraCharacteristics.LENS_FACING_FRONT;
                 isFront = (hasFrontCamera && isFront);
 
-                boolean isBack = info.get(CameraCharacteristics.LENS_FACING)
-                        == CameraCharacteristics.LENS_FACING_BACK;
+                boolean isBack = info.facing == CameraCharacteristics.LENS_FACING_BACK;
 
                 if (isBack) {
                     cameraIdBack = cameraId;
+                    infoBack = info;
                 } else if (isFront) {
                     cameraIdFront = cameraId;
+                    infoFront = info;
                 }
             }
         } catch (CameraAccessException cae) {
@@ -297,29 +762,40 @@ public class OnTheGoService extends Service {
 
         if (type == CAMERA_BACK) {
             mCameraId = cameraIdBack;
+            mCameraInfo = infoBack;
         } else if (type == CAMERA_FRONT) {
             mCameraId = cameraIdFront;
+            mCameraInfo = infoFront;
         }
 
         if (mCameraId == null) {
             return;
         }
 
-        final CameraCharacteristics cam;
-        try {
-            cam = manager.getCameraCharacteristics(mCameraId);
-        } catch (CameraAccessException cae) {
-            return;
-        }
-
-        StreamConfigurationMap map = cam.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-
         // For still image captures, we use the largest available size.
-        final Size largest = Collections.max(Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
+        final Size largest = Collections.max(Arrays.asList(mCameraInfo.jpegSizes),
                 new CompareSizesByArea());
 
-        mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                width, height, largest);
+        // The sizes are in sensor orientation, the window is in display orientation.
+        final int sensorOrientation = mCameraInfo.sensorOrientation;
+        final int displayRotation = getDisplayRotation();
+        final boolean swappedDimensions;
+        if (Surface.ROTATION_0 == displayRotation || Surface.ROTATION_180 == displayRotation) {
+            swappedDimensions = (sensorOrientation == 90 || sensorOrientation == 270);
+        } else {
+            swappedDimensions = (sensorOrientation == 0 || sensorOrientation == 180);
+        }
+        int previewWidth = swappedDimensions ? height : width;
+        int previewHeight = swappedDimensions ? width : height;
+        if (mThermalLadder.getLevel() >= ThermalLadder.LEVEL_REDUCED_RESOLUTION) {
+            // a smaller stream, the texture view scales it up to the window
+            previewWidth = Math.round(previewWidth * THERMAL_RESOLUTION_SCALE);
+            previewHeight = Math.round(previewHeight * THERMAL_RESOLUTION_SCALE);
+        }
+
+        mPreviewSize = chooseOptimalSize(mCameraInfo.previewSizes,
+                previewWidth, previewHeight, largest);
+        logDebug("Preview size for " + width + "x" + height + ": " + mPreviewSize);
     }
 
     static class CompareSizesByArea implements Comparator<Size> {
@@ -354,17 +830,78 @@ public class OnTheGoService extends Service {
         }
     }
 
+    private boolean isStreamingEdges() {
+        return (mRenderMode == RENDER_MODE_EDGES && mEdgeView != null
+                && mCameraInfo != null && mCameraInfo.yuvSizes != null);
+    }
+
+    /**
+     * @return The size the session streams, which is the YUV size of the edge map in edge mode
+     */
+    private Size getStreamSize() {
+        if (mPreviewSize == null || !isStreamingEdges()) {
+            return mPreviewSize;
+        }
+        final float scale = (mThermalLadder.getLevel() >= ThermalLadder.LEVEL_REDUCED_RESOLUTION)
+                ? THERMAL_RESOLUTION_SCALE : 1f;
+        return EdgeRenderer.chooseYuvSize(mCameraInfo.yuvSizes, mPreviewSize, scale);
+    }
+
     private void openCamera(int type, int width, int height) throws Exception {
         releaseCamera();
 
-        final CameraManager manager = (CameraManager) getSystemService(Context.CAMERA_SERVICE);
-        setUpCameraOutputs(type, width, height, manager);
+        setUpCameraOutputs(type, width, height);
         configureTransform(width, height);
 
-        if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-            throw new RuntimeException("Time out waiting to lock camera opening.");
+        mTimings.onOpenRequested(SystemClock.elapsedRealtime());
+        mCameraBackend.openCamera(mCameraId, createStateCallback(mCameraGeneration), null);
+        mCameraRequested = true;
+    }
+
+    /**
+     * The window on a display which is off does not get drawn, so its texture view does not get
+     * a surface before the screen turns on. Opens the camera for the size the window is going to
+     * have instead, the session gets configured once the surface arrives.
+     */
+    private void openCameraEarly() {
+        final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+        final Point size = new Point();
+        wm.getDefaultDisplay().getRealSize(size);
+        final int height = (mOverlayParams != null && mOverlayParams.height > 0)
+                ? mOverlayParams.height : size.y;
+        try {
+            openCamera(mCameraType, size.x, height);
+        } catch (Exception exc) {
+            // the surface will try again
+            logDebug("Could not open camera early: " + exc.getMessage());
+        }
+    }
+
+    /**
+     * Re-derives the preview size for a resized window and only reconfigures the capture
+     * session if the stream size actually changed.
+     *
+     * @return True if the session got reconfigured
+     */
+    private boolean updatePreviewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+        setUpCameraOutputs(mCameraType, width, height);
+        configureTransform(width, height);
+
+        // the thermal level already changed as well, only the session knows the old size
+        final Size size = getStreamSize();
+        if (mCameraDevice != null && mStreamSize != null && !mStreamSize.equals(size)) {
+            logDebug("Stream size changed, reconfiguring session");
+            if (null != mCaptureSession) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+                mPreviewRequest = null;
+            }
+            createCameraPreviewSession();
+            return true;
         }
-        manager.openCamera(mCameraId, mStateCallback, null);
+        return false;
     }
 
     private void setupViews(final boolean isRestarting) {
@@ -372,16 +909,36 @@ public class OnTheGoService extends Service {
 
         final int cameraType = Settings.get(this).getInt(Settings.KEY_ONTHEGO_CAMERA, 0);
         final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+        mCameraType = cameraType;
+        mRenderMode = Settings.get(this).getInt(Settings.KEY_ONTHEGO_RENDER_MODE,
+                RENDER_MODE_PREVIEW);
+        if (mGeometry == null) {
+            mGeometry = OverlayGeometry.fromSettings(this);
+        }
 
         mTextureView = new TextureView(this);
         mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+                mSurfaceTexture = texture;
+                mViewWidth = width;
+                mViewHeight = height;
+                if (mCameraRequested) {
+                    // opened early, only the session is missing
+                    setUpCameraOutputs(cameraType, width, height);
+                    configureTransform(width, height);
+                    if (null != mCameraDevice) {
+                        createCameraPreviewSession();
+                    }
+                    return;
+                }
                 try {
                     openCamera(cameraType, width, height);
                 } catch (Exception exc) {
                     // Well, you cant have all in this life..
                     logDebug("Exception: " + exc.getMessage());
+                    mTimings.onError(SessionTelemetry.ERROR_OPEN_FAILED);
+                    recordSessionStart();
                     createNotification(NOTIFICATION_ERROR);
                     stopOnTheGo(true);
                 }
@@ -389,40 +946,76 @@ public class OnTheGoService extends Service {
 
             @Override
             public void onSurfaceTextureSizeChanged(SurfaceTexture texture, int width, int height) {
-                configureTransform(width, height);
+                updatePreviewSize(width, height);
             }
 
             @Override
             public boolean onSurfaceTextureDestroyed(SurfaceTexture surfaceTexture) {
                 releaseCamera();
+                mSurfaceTexture = null;
                 return true;
             }
 
             @Override
-            public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) { }
+            public void onSurfaceTextureUpdated(SurfaceTexture surfaceTexture) {
+                if (!mSoftwareStabilization || surfaceTexture != mSurfaceTexture) {
+                    return;
+                }
+                // The render thread only latches the new frame after this callback, so
+                // getTimestamp() is still the one on screen. The transform set now gets drawn
+                // with the frame captured right after it.
+                final long next = nextCapturedFrame(surfaceTexture.getTimestamp());
+                if (next >= 0) {
+                    applyStabilization(next);
+                }
+            }
         });
 
-        mOverlay = new FrameLayout(this);
+        mOverlay = new FrameLayout(this) {
+            @Override
+            protected void onWindowVisibilityChanged(int visibility) {
+                super.onWindowVisibilityChanged(visibility);
+                // ignore overlays which already got replaced
+                if (this == mOverlay) {
+                    mPauseController.setVisible(visibility == View.VISIBLE,
+                            SystemClock.elapsedRealtime());
+                }
+            }
+        };
         mOverlay.setLayoutParams(new FrameLayout.LayoutParams(
                         ViewGroup.LayoutParams.MATCH_PARENT,
                         ViewGroup.LayoutParams.MATCH_PARENT)
         );
         mOverlay.addView(mTextureView);
 
-        final WindowManager.LayoutParams params = new WindowManager.LayoutParams(
-                WindowManager.LayoutParams.TYPE_SYSTEM_OVERLAY,
-                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE |
-                        WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL |
-                        WindowManager.LayoutParams.FLAG_FULLSCREEN |
-                        WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED |
-                        WindowManager.LayoutParams.FLAG_TRANSLUCENT_NAVIGATION |
-                        WindowManager.LayoutParams.FLAG_TRANSLUCENT_STATUS,
-                PixelFormat.TRANSLUCENT
-        );
-        wm.addView(mOverlay, params);
+        if (mRenderMode == RENDER_MODE_EDGES) {
+            // The texture view only drives the lifecycle, it never receives frames in this mode
+            mEdgeView = new ImageView(this);
+            mOverlay.addView(mEdgeView, new FrameLayout.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT,
+                    ViewGroup.LayoutParams.MATCH_PARENT));
+        } else {
+            mEdgeView = null;
+        }
+
+        // Only a draggable overlay needs to receive touches, everything else passes through
+        final int type = mGeometry.draggable
+                ? WindowManager.LayoutParams.TYPE_SYSTEM_ALERT
+                : WindowManager.LayoutParams.TYPE_SYSTEM_OVERLAY;
+        final int flags = WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE |
+                WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL |
+                WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN |
+                WindowManager.LayoutParams.FLAG_HARDWARE_ACCELERATED |
+                WindowManager.LayoutParams.FLAG_TRANSLUCENT_NAVIGATION |
+                WindowManager.LayoutParams.FLAG_TRANSLUCENT_STATUS;
+
+        mOverlayParams = new WindowManager.LayoutParams(type, flags, PixelFormat.TRANSLUCENT);
+        applyGeometry(wm);
+        wm.addView(mOverlay, mOverlayParams);
+        updateCovered();
 
         final float alpha = Settings.get(this).getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f);
-        mOverlay.setAlpha(alpha);
+        setAlpha(alpha);
     }
 
     private void resetViews() {
@@ -432,24 +1025,89 @@ public class OnTheGoService extends Service {
             mOverlay.removeAllViews();
             wm.removeView(mOverlay);
             mOverlay = null;
+            mOverlayParams = null;
+            notifyStateChanged();
         }
     }
 
-    private void releaseCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
+    /**
+     * The window manager only reports the overlay being hidden, never another window on top of
+     * it. No app window can cover the overlay, both window types sit above all of them. The
+     * keyguard however sits above the alert window a draggable overlay uses.
+     */
+    private void updateCovered() {
+        final boolean covered = (mGeometry != null && mGeometry.draggable && isKeyguardLocked());
+        mPauseController.setCovered(covered, SystemClock.elapsedRealtime());
+    }
+
+    private final View.OnTouchListener mDragListener = new View.OnTouchListener() {
+        private float mDownRawY;
+        private int mDownOffset;
+
+        @Override
+        public boolean onTouch(View v, MotionEvent event) {
+            if (mOverlay == null || mOverlayParams == null) {
+                return false;
             }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
+
+            final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN: {
+                    mDownRawY = event.getRawY();
+                    mDownOffset = mOverlayParams.y;
+                    return true;
+                }
+                case MotionEvent.ACTION_MOVE: {
+                    final int delta = (int) (event.getRawY() - mDownRawY);
+                    mOverlayParams.y = mGeometry.clampOffset(
+                            mDownOffset + delta * mGeometry.getDragDirection(),
+                            mOverlayParams.height, getDisplayHeight(wm));
+                    wm.updateViewLayout(mOverlay, mOverlayParams);
+                    return true;
+                }
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL: {
+                    mGeometry = mGeometry.withOffset(mOverlayParams.y);
+                    mGeometry.persist(OnTheGoService.this);
+                    return true;
+                }
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
+            return false;
+        }
+    };
+
+    private int getDisplayRotation() {
+        final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
+        return wm.getDefaultDisplay().getRotation();
+    }
+
+    private static int getDisplayHeight(WindowManager wm) {
+        final Point size = new Point();
+        wm.getDefaultDisplay().getRealSize(size);
+        return size.y;
+    }
+
+    private void releaseCamera() {
+        // an open which is still in flight closes its device once it arrives
+        mCameraGeneration++;
+        mCameraRequested = false;
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        mPreviewRequest = null;
+        mPreviewSurface = null;
+        mStreamSize = null;
+        stopGyroscope();
+        mSoftwareStabilization = false;
+        mSoftwareStabilizationWanted = false;
+        if (null != mCameraDevice) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (null != mEdgeRenderer) {
+            mEdgeRenderer.release();
+            mEdgeRenderer = null;
         }
     }
 
@@ -457,8 +1115,7 @@ public class OnTheGoService extends Service {
         if (null == mTextureView || null == mPreviewSize) {
             return;
         }
-        final WindowManager wm = (WindowManager) getSystemService(WINDOW_SERVICE);
-        int rotation = wm.getDefaultDisplay().getRotation();
+        int rotation = getDisplayRotation();
         Matrix matrix = new Matrix();
         RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
         RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
@@ -472,8 +1129,180 @@ public class OnTheGoService extends Service {
                     (float) viewWidth / mPreviewSize.getWidth());
             matrix.postScale(scale, scale, centerX, centerY);
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
+        } else {
+            // The buffer gets stretched to the window, so undo that and crop to the window instead
+            final float bufferWidth = mPreviewSize.getHeight();
+            final float bufferHeight = mPreviewSize.getWidth();
+            float scale = Math.max(viewWidth / bufferWidth, viewHeight / bufferHeight);
+            matrix.setScale(bufferWidth * scale / viewWidth, bufferHeight * scale / viewHeight,
+                    centerX, centerY);
+            if (Surface.ROTATION_180 == rotation) {
+                matrix.postRotate(180, centerX, centerY);
+            }
         }
         mTextureView.setTransform(matrix);
+
+        // keep everything the per frame stabilization needs around
+        mBaseTransform.set(matrix);
+        mDisplayRotation = rotation;
+        mViewCenterX = centerX;
+        mViewCenterY = centerY;
+        final float focalLengthRatio = (mCameraInfo != null)
+                ? mCameraInfo.focalLengthRatio
+                : CameraInfo.DEFAULT_FOCAL_LENGTH_RATIO;
+        mPixelsPerRadian = focalLengthRatio * Math.max(viewWidth, viewHeight);
+        mMaxShiftX = (STABILIZATION_OVERSCAN - 1f) * viewWidth / 2f;
+        mMaxShiftY = (STABILIZATION_OVERSCAN - 1f) * viewHeight / 2f;
+
+        // a resized window keeps the stream, but the edge map needs to cover the new size
+        if (null != mEdgeRenderer && null != mCameraInfo) {
+            configureEdgeRenderer(viewWidth, viewHeight);
+        }
+    }
+
+    private void configureEdgeRenderer(int viewWidth, int viewHeight) {
+        final int displayDegrees = getDisplayRotation() * 90;
+        final boolean isFront = (mCameraType == CAMERA_FRONT);
+        final int rotation = isFront
+                ? (mCameraInfo.sensorOrientation + displayDegrees) % 360
+                : (mCameraInfo.sensorOrientation - displayDegrees + 360) % 360;
+        mEdgeRenderer.configure(viewWidth, viewHeight, rotation, isFront);
+    }
+
+    private final SensorEventListener mGyroListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            mStabilizer.addSample(event.timestamp,
+                    event.values[0], event.values[1], event.values[2]);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+    };
+
+    private void startGyroscope() {
+        if (mGyroRegistered) {
+            return;
+        }
+        final SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        final Sensor gyroscope = sm.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (gyroscope == null) {
+            logDebug("No gyroscope, can not stabilize");
+            mSoftwareStabilization = false;
+            return;
+        }
+
+        mStabilizer.reset();
+        mFrameTimestampOffset = 0;
+        mCapturedFrameCount = 0;
+        // batch the samples, we only need them once per frame anyway
+        mGyroRegistered = sm.registerListener(mGyroListener, gyroscope,
+                GYRO_SAMPLING_PERIOD_US, GYRO_MAX_REPORT_LATENCY_US);
+    }
+
+    private void stopGyroscope() {
+        if (!mGyroRegistered) {
+            return;
+        }
+        final SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        sm.unregisterListener(mGyroListener);
+        mGyroRegistered = false;
+    }
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                        long timestamp, long frameNumber) {
+                    if (mTimings.onFrame(SystemClock.elapsedRealtime(), timestamp)) {
+                        recordSessionStart();
+                    }
+                    if (mSoftwareStabilization) {
+                        mCapturedFrames[mCapturedFrameCount % CAPTURED_FRAME_HISTORY] = timestamp;
+                        mCapturedFrameCount++;
+                    }
+                }
+            };
+
+    /**
+     * @return The sensor timestamp of the first captured frame after the given one or -1 if
+     * there is none (yet)
+     */
+    private long nextCapturedFrame(long timestamp) {
+        long next = -1;
+        final int count = Math.min(mCapturedFrameCount, CAPTURED_FRAME_HISTORY);
+        for (int i = 0; i < count; i++) {
+            final long captured = mCapturedFrames[i];
+            if (captured > timestamp && (next < 0 || captured < next)) {
+                next = captured;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Shifts and rotates the preview against the shake measured at the frame's sensor timestamp.
+     * Runs for every displayed frame, right before its texture gets latched. By then the frame
+     * is a few frames old and the batched gyro samples around its exposure have arrived, which
+     * they have not yet when the capture starts. Must not allocate.
+     *
+     * @param frameTimestamp The sensor timestamp of the frame which gets drawn next
+     */
+    private void applyStabilization(long frameTimestamp) {
+        final long newestSample = mStabilizer.getNewestTimestamp();
+        if (null == mTextureView || newestSample < 0) {
+            return;
+        }
+
+        long timestamp = frameTimestamp + mFrameTimestampOffset;
+        if (Math.abs(timestamp - newestSample) > CLOCK_MISMATCH_NS) {
+            // The camera does not use the sensor time base, map monotonic to elapsed realtime
+            mFrameTimestampOffset = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+            timestamp = frameTimestamp + mFrameTimestampOffset;
+        }
+        if (!mStabilizer.update(timestamp)) {
+            return;
+        }
+
+        // corrections in the natural orientation of the device
+        float dx = mPixelsPerRadian * mStabilizer.getCorrectionY();
+        float dy = mPixelsPerRadian * mStabilizer.getCorrectionX();
+        float degrees = (float) Math.toDegrees(mStabilizer.getCorrectionZ());
+        if (mCameraType == CAMERA_FRONT) {
+            // the front camera looks the other way and gets mirrored
+            dy = -dy;
+            degrees = -degrees;
+        }
+
+        final float shiftX;
+        final float shiftY;
+        switch (mDisplayRotation) {
+            case Surface.ROTATION_90:
+                shiftX = dy;
+                shiftY = -dx;
+                break;
+            case Surface.ROTATION_180:
+                shiftX = -dx;
+                shiftY = -dy;
+                break;
+            case Surface.ROTATION_270:
+                shiftX = -dy;
+                shiftY = dx;
+                break;
+            default:
+                shiftX = dx;
+                shiftY = dy;
+                break;
+        }
+
+        mStabilizedTransform.set(mBaseTransform);
+        mStabilizedTransform.postScale(STABILIZATION_OVERSCAN, STABILIZATION_OVERSCAN,
+                mViewCenterX, mViewCenterY);
+        mStabilizedTransform.postRotate(degrees, mViewCenterX, mViewCenterY);
+        mStabilizedTransform.postTranslate(
+                Math.max(-mMaxShiftX, Math.min(mMaxShiftX, shiftX)),
+                Math.max(-mMaxShiftY, Math.min(mMaxShiftY, shiftY)));
+        mTextureView.setTransform(mStabilizedTransform);
     }
 
     private void createCameraPreviewSession() {
@@ -485,59 +1314,180 @@ public class OnTheGoService extends Service {
     }
 
     private void createCameraPreviewSessionImpl() throws CameraAccessException {
-        SurfaceTexture texture = mTextureView.getSurfaceTexture();
+        final SurfaceTexture texture = mSurfaceTexture;
+        if (null == texture || null == mCameraInfo) {
+            return;
+        }
 
         // We configure the size of default buffer to be the size of camera preview we want.
         texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
         // This is the output Surface we need to start preview.
-        Surface surface = new Surface(texture);
+        final Surface surface;
+        mStreamSize = getStreamSize();
+        if (isStreamingEdges()) {
+            // Only a small YUV stream for the edge map, the preview itself is not shown
+            if (null != mEdgeRenderer) {
+                mEdgeRenderer.release();
+            }
+            mEdgeRenderer = new EdgeRenderer(mEdgeView, mStreamSize);
+            configureEdgeRenderer(mTextureView.getWidth(), mTextureView.getHeight());
+            mEdgeRenderer.setFrameInterval(
+                    (mThermalLadder.getLevel() >= ThermalLadder.LEVEL_NO_ANALYSIS)
+                            ? THERMAL_EDGE_FRAME_INTERVAL : 1);
+            surface = mEdgeRenderer.getSurface();
+        } else {
+            surface = new Surface(texture);
+        }
 
         final ArrayList<Surface> surfaces = new ArrayList<>(1);
         surfaces.add(surface);
 
-        // We set up a CaptureRequest.Builder with the output Surface.
-        final CaptureRequest.Builder previewRequestBuilder
-                = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-        previewRequestBuilder.addTarget(surface);
+        // Prefer what the hardware offers, only fall back to the gyroscope without it
+        final boolean stabilize = Settings.get(this)
+                .getBoolean(Settings.KEY_ONTHEGO_STABILIZATION, false);
+        final boolean hardwareStabilization = (mCameraInfo.hasVideoStabilization
+                || mCameraInfo.hasOpticalStabilization);
 
         // Here, we create a CameraCaptureSession for camera preview.
+        mTimings.onConfigureRequested(SystemClock.elapsedRealtime());
         mCameraDevice.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
 
                     @Override
                     public void onConfigured(CameraCaptureSession cameraCaptureSession) {
-                        // The camera is already closed
-                        if (null == mCameraDevice) {
+                        // The camera is already closed or got replaced
+                        if (null == mCameraDevice
+                                || cameraCaptureSession.getDevice() != mCameraDevice) {
+                            cameraCaptureSession.close();
                             return;
                         }
 
                         // When the session is ready, we start displaying the preview.
+                        mTimings.onConfigured(SystemClock.elapsedRealtime());
+                        mPrewarm.onReady(SystemClock.elapsedRealtime());
                         mCaptureSession = cameraCaptureSession;
+                        mPreviewSurface = surface;
                         try {
-                            // Auto focus should be continuous for camera preview.
-                            previewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                            // Flash is automatically enabled when necessary.
-                            previewRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                                    CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-
-                            // Finally, we start displaying the camera preview.
-                            final CaptureRequest previewRequest = previewRequestBuilder.build();
-                            mCaptureSession.setRepeatingRequest(previewRequest, null, null);
+                            // built here, so it matches the thermal level at this point
+                            mPreviewRequest = createPreviewRequest(surface);
                         } catch (CameraAccessException e) {
                             e.printStackTrace();
+                            return;
+                        }
+                        // Software stabilization moves the preview, which the edge map is not
+                        mSoftwareStabilizationWanted = (stabilize && !hardwareStabilization
+                                && mEdgeRenderer == null);
+                        mSoftwareStabilization = (mSoftwareStabilizationWanted
+                                && mThermalLadder.getLevel() < ThermalLadder.LEVEL_NO_ANALYSIS);
+
+                        // Finally, we start displaying the camera preview.
+                        if (!mPauseController.isPaused()) {
+                            if (mSoftwareStabilization) {
+                                startGyroscope();
+                            }
+                            startRepeating();
                         }
                     }
 
                     @Override
                     public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
-                        // showToast("Failed");
+                        if (null == mCameraDevice
+                                || cameraCaptureSession.getDevice() != mCameraDevice) {
+                            return;
+                        }
+                        mTimings.onError(SessionTelemetry.ERROR_CONFIGURE_FAILED);
+                        recordSessionStart();
+                        // without a session the opened camera is of no use to anyone
+                        stopOnTheGo(false);
                     }
                 }, null
         );
     }
 
+    private CaptureRequest createPreviewRequest(Surface surface) throws CameraAccessException {
+        final boolean stabilize = Settings.get(this)
+                .getBoolean(Settings.KEY_ONTHEGO_STABILIZATION, false);
+        final boolean noiseReduction =
+                (mThermalLadder.getLevel() < ThermalLadder.LEVEL_NO_NOISE_REDUCTION);
+        return mCameraBackend.createPreviewRequest(mCameraDevice, surface, mCameraInfo,
+                stabilize, noiseReduction);
+    }
+
+    /**
+     * Applies the steps of the ladder which got crossed. Only a change of the stream size
+     * reconfigures the session, everything else is a new repeating request or happens on our
+     * side of the camera.
+     */
+    private void applyThermalLevel(int oldLevel, int newLevel) {
+        boolean reconfigured = false;
+        if (crossed(oldLevel, newLevel, ThermalLadder.LEVEL_REDUCED_RESOLUTION)
+                && mViewWidth > 0 && mViewHeight > 0 && mCameraInfo != null) {
+            reconfigured = updatePreviewSize(mViewWidth, mViewHeight);
+        }
+
+        if (!reconfigured && crossed(oldLevel, newLevel, ThermalLadder.LEVEL_NO_NOISE_REDUCTION)
+                && null != mCaptureSession && null != mPreviewSurface) {
+            try {
+                mPreviewRequest = createPreviewRequest(mPreviewSurface);
+            } catch (CameraAccessException cae) {
+                logDebug("Could not update preview request: " + cae.getMessage());
+            }
+            if (!mPauseController.isPaused()) {
+                startRepeating();
+            }
+        }
+
+        if (crossed(oldLevel, newLevel, ThermalLadder.LEVEL_NO_ANALYSIS)) {
+            final boolean reduced = (newLevel >= ThermalLadder.LEVEL_NO_ANALYSIS);
+            if (null != mEdgeRenderer) {
+                mEdgeRenderer.setFrameInterval(reduced ? THERMAL_EDGE_FRAME_INTERVAL : 1);
+            }
+            mSoftwareStabilization = (mSoftwareStabilizationWanted && !reduced);
+            if (mSoftwareStabilization) {
+                if (!mPauseController.isPaused()) {
+                    startGyroscope();
+                }
+            } else {
+                stopGyroscope();
+                if (null != mTextureView) {
+                    mTextureView.setTransform(mBaseTransform);
+                }
+            }
+        }
+    }
+
+    private static boolean crossed(int oldLevel, int newLevel, int level) {
+        return (oldLevel >= level) != (newLevel >= level);
+    }
+
+    private void startRepeating() {
+        if (null == mCaptureSession) {
+            return;
+        }
+        try {
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, null);
+        } catch (CameraAccessException | IllegalStateException e) {
+            logDebug("Could not resume preview: " + e.getMessage());
+        }
+    }
+
+    private void stopRepeating() {
+        if (null == mCaptureSession) {
+            return;
+        }
+        try {
+            mCaptureSession.stopRepeating();
+        } catch (CameraAccessException | IllegalStateException e) {
+            logDebug("Could not pause preview: " + e.getMessage());
+        }
+    }
+
     private void createNotification(final int type) {
+        if (type == NOTIFICATION_STARTED) {
+            updateNotification();
+            return;
+        }
+
         final Intent i = new Intent(this, OnTheGoDialog.class);
         i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         final PendingIntent pendingIntent = PendingIntent.getActivity(this, 1000, i,
@@ -566,6 +1516,356 @@ public class OnTheGoService extends Service {
         mNotificationManager.notify(ONTHEGO_NOTIFICATION_ID, notif);
     }
 
+    /**
+     * Posts the notification of the running overlay. The builder and its actions are created
+     * once and only updated afterwards, the actions talk to this service directly.
+     */
+    private void updateNotification() {
+        if (!mRunning) {
+            // the restart or error notification stays as it is
+            return;
+        }
+        if (mNotificationBuilder == null) {
+            createNotificationBuilder();
+        }
+
+        final Resources r = getResources();
+        final boolean paused = mPauseController.isUserPaused();
+        mPauseAction.icon = paused
+                ? android.R.drawable.ic_media_play
+                : android.R.drawable.ic_media_pause;
+        mPauseAction.title = r.getString(paused
+                ? R.string.onthego_action_resume
+                : R.string.onthego_action_pause);
+
+        final int alpha = Math.round(
+                Settings.get(this).getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f) * 100);
+        mNotificationBuilder.setContentText(r.getString(paused
+                ? R.string.onthego_notif_paused
+                : R.string.onthego_notif_alpha, alpha));
+
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mNotificationManager.notify(ONTHEGO_NOTIFICATION_ID, mNotificationBuilder.build());
+    }
+
+    private void createNotificationBuilder() {
+        final Intent i = new Intent(this, OnTheGoDialog.class);
+        i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final PendingIntent pendingIntent = PendingIntent.getActivity(this, 1000, i,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        final Resources r = getResources();
+        mPauseAction = createAction(ACTION_PAUSE, android.R.drawable.ic_media_pause,
+                r.getString(R.string.onthego_action_pause));
+
+        mNotificationBuilder = new Notification.Builder(this)
+                .setContentIntent(pendingIntent)
+                .setTicker(r.getString(R.string.onthego_notif_ticker))
+                .setContentTitle(r.getString(R.string.onthego_notif_title))
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setWhen(System.currentTimeMillis())
+                .setOngoing(true)
+                .addAction(mPauseAction)
+                .addAction(createAction(ACTION_ALPHA_DOWN, android.R.drawable.arrow_down_float,
+                        r.getString(R.string.onthego_action_alpha_down)))
+                .addAction(createAction(ACTION_ALPHA_UP, android.R.drawable.arrow_up_float,
+                        r.getString(R.string.onthego_action_alpha_up)))
+                .addAction(createAction(ACTION_SWITCH_CAMERA, android.R.drawable.ic_menu_camera,
+                        r.getString(R.string.onthego_action_switch_camera)))
+                .addAction(createAction(ACTION_STOP,
+                        android.R.drawable.ic_menu_close_clear_cancel, r.getString(R.string.stop)));
+
+        // The default template only shows three actions, the media style shows all five
+        mNotificationBuilder.setStyle(new Notification.MediaStyle()
+                .setShowActionsInCompactView(0, 1, 2));
+    }
+
+    private Notification.Action createAction(String action, int icon, String title) {
+        final Intent intent = new Intent(this, OnTheGoService.class);
+        intent.setAction(action);
+        // one request code per action, else they would share the same pending intent
+        final PendingIntent pendingIntent = PendingIntent.getService(this, action.hashCode(),
+                intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        return new Notification.Action.Builder(icon, title, pendingIntent).build();
+    }
+
+    private boolean isPrewarmEnabled() {
+        return Settings.get(this).getBoolean(Settings.KEY_ONTHEGO_PREWARM, false);
+    }
+
+    private boolean isKeyguardLocked() {
+        final KeyguardManager km = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
+        return km != null && km.isKeyguardLocked();
+    }
+
+    /**
+     * Opens the camera and configures the session behind an invisible overlay, with the
+     * repeating request held back. Revealing it only has to wait for the first frame.
+     * <p>
+     * The camera gets opened right away, without waiting for the surface of the overlay. That
+     * one only arrives once the screen is on, which a proximity warm up is ahead of.
+     */
+    private void startPrewarm(int trigger) {
+        final long now = SystemClock.elapsedRealtime();
+        logDebug("Warming up the camera, trigger: " + trigger);
+        mPrewarm.onStarted(trigger, now);
+        mPauseController.setWarming(true, now);
+        beginSession(SessionTelemetry.EVENT_SCREEN_ON);
+        setupViews(true);
+        openCameraEarly();
+        mHandler.postDelayed(mPrewarmDeadlineRunnable, PREWARM_DEADLINE);
+    }
+
+    private void revealPrewarm() {
+        final long now = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mPrewarmDeadlineRunnable);
+        final long saved = mPrewarm.onRevealed(now);
+        logDebug("Revealing the warm camera, saved " + saved + "ms");
+        mTimings.onRevealed(now);
+        mPauseController.setWarming(false, now);
+        setAlpha(Settings.get(this).getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f));
+    }
+
+    /**
+     * Counts the running warm up as a miss. The views have to be reset before, else the
+     * preview would resume for nothing.
+     */
+    private void cancelPrewarm() {
+        if (!mPrewarm.isWarming()) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mPrewarmDeadlineRunnable);
+        mPrewarm.onCancelled(now);
+        mPauseController.setWarming(false, now);
+        // nobody ever saw this session, keep it out of the telemetry
+        mTimings.end();
+    }
+
+    private final Runnable mPrewarmDeadlineRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mRestartObject) {
+                logDebug("Warm up was not revealed in time, cancelling");
+                resetViews();
+                cancelPrewarm();
+            }
+        }
+    };
+
+    private void startProximity() {
+        if (mProximityRegistered || !isPrewarmEnabled() || !Settings.get(this)
+                .getBoolean(Settings.KEY_ONTHEGO_PREWARM_PROXIMITY, false)) {
+            return;
+        }
+        final SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        // a wake up sensor keeps reporting while the device sleeps
+        Sensor proximity = sm.getDefaultSensor(Sensor.TYPE_PROXIMITY, true);
+        if (proximity == null) {
+            proximity = sm.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        }
+        if (proximity == null) {
+            return;
+        }
+        mProximityNear = false;
+        mProximityRegistered = sm.registerListener(mProximityListener, proximity,
+                SensorManager.SENSOR_DELAY_NORMAL);
+    }
+
+    private void stopProximity() {
+        if (!mProximityRegistered) {
+            return;
+        }
+        final SensorManager sm = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        sm.unregisterListener(mProximityListener);
+        mProximityRegistered = false;
+    }
+
+    private final SensorEventListener mProximityListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            onProximityChanged(event.values[0] < event.sensor.getMaximumRange());
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) { }
+    };
+
+    // not private, tests have no proximity sensor and call it directly
+    void onProximityChanged(boolean near) {
+        synchronized (mRestartObject) {
+            // only near -> far counts, a phone lying on the table is always far
+            if (mProximityNear && !near && !mPrewarm.isWarming() && mOverlay == null) {
+                startPrewarm(PrewarmTracker.TRIGGER_PROXIMITY);
+            }
+        }
+        mProximityNear = near;
+    }
+
+    private void beginSession(int event) {
+        mTimings.begin(event, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Records how the current session came up, once it shows its first frame or failed to.
+     */
+    private void recordSessionStart() {
+        if (!mTimings.isActive() || !mTimings.markRecorded()) {
+            return;
+        }
+        mTelemetry.append(createRecord(mTimings.getEvent(), 0f));
+    }
+
+    private void recordSessionStop() {
+        if (!mTimings.isActive()) {
+            return;
+        }
+        recordSessionStart();
+        mTelemetry.append(createRecord(SessionTelemetry.EVENT_STOP, mTimings.getFps()));
+        mTimings.end();
+    }
+
+    private SessionTelemetry.Record createRecord(int event, float fps) {
+        final int width = (mPreviewSize != null) ? mPreviewSize.getWidth() : 0;
+        final int height = (mPreviewSize != null) ? mPreviewSize.getHeight() : 0;
+        return new SessionTelemetry.Record(System.currentTimeMillis(), event, mCameraType,
+                width, height, fps, mTimings.getOpenLatency(), mTimings.getConfigureLatency(),
+                mTimings.getFirstFrameLatency(), mTimings.getErrorCode());
+    }
+
+    /**
+     * Lets the listeners know about the current state, at most once per
+     * {@link #STATE_EVENT_INTERVAL}. Cheap enough to call on every change.
+     */
+    private void notifyStateChanged() {
+        if (mStateEventPending || mListeners.getRegisteredCallbackCount() == 0) {
+            return;
+        }
+        mStateEventPending = true;
+        final long wait = mLastStateEventAt + STATE_EVENT_INTERVAL - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mStateEventRunnable, Math.max(0, wait));
+    }
+
+    private final Runnable mStateEventRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStateEventPending = false;
+            mLastStateEventAt = SystemClock.elapsedRealtime();
+
+            final Settings settings = Settings.get(OnTheGoService.this);
+            final boolean active = mRunning;
+            final boolean paused = (mOverlay == null || mPauseController.isPaused());
+            final float alpha = settings.getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f);
+            final int cameraType = settings.getInt(Settings.KEY_ONTHEGO_CAMERA, CAMERA_BACK);
+            final int thermalLevel = mThermalLadder.getLevel();
+
+            final int count = mListeners.beginBroadcast();
+            for (int i = 0; i < count; i++) {
+                try {
+                    mListeners.getBroadcastItem(i)
+                            .onStateChanged(active, paused, alpha, cameraType, thermalLevel);
+                } catch (RemoteException ignored) {
+                    // the callback list drops dead listeners by itself
+                }
+            }
+            mListeners.finishBroadcast();
+        }
+    };
+
+    private final Runnable mListenerRegisteredRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notifyStateChanged();
+            if (mRunning) {
+                startFrameStats();
+            }
+        }
+    };
+
+    private void startFrameStats() {
+        if (mFrameStatsRunning || mListeners.getRegisteredCallbackCount() == 0) {
+            return;
+        }
+        mFrameStatsRunning = true;
+        mFrameStatsAt = SystemClock.elapsedRealtime();
+        mFrameStatsCount = mTimings.getFrameCount();
+        mHandler.postDelayed(mFrameStatsRunnable, FRAME_STATS_INTERVAL);
+    }
+
+    private void stopFrameStats() {
+        mFrameStatsRunning = false;
+        mHandler.removeCallbacks(mFrameStatsRunnable);
+    }
+
+    private final Runnable mFrameStatsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mListeners.getRegisteredCallbackCount() == 0) {
+                mFrameStatsRunning = false;
+                return;
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            final long frameCount = mTimings.getFrameCount();
+            // the count starts over with every session
+            final long frames = (frameCount >= mFrameStatsCount)
+                    ? frameCount - mFrameStatsCount
+                    : frameCount;
+            final float fps = (now > mFrameStatsAt) ? frames * 1000f / (now - mFrameStatsAt) : 0f;
+            mFrameStatsAt = now;
+            mFrameStatsCount = frameCount;
+
+            if (frames > 0) {
+                final int firstFrameLatency = mTimings.getFirstFrameLatency();
+                final int count = mListeners.beginBroadcast();
+                for (int i = 0; i < count; i++) {
+                    try {
+                        mListeners.getBroadcastItem(i)
+                                .onFrameStats(fps, frameCount, firstFrameLatency);
+                    } catch (RemoteException ignored) { }
+                }
+                mListeners.finishBroadcast();
+            }
+            mHandler.postDelayed(this, FRAME_STATS_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final long now = SystemClock.elapsedRealtime();
+        pw.println("OnTheGoService state:");
+        pw.println("  active: " + (mOverlay != null));
+        pw.println("  preview size: " + mPreviewSize);
+        pw.println("  render mode: "
+                + (mRenderMode == RENDER_MODE_EDGES ? "edges" : "preview"));
+        pw.println("  preview pauses:");
+        mPauseController.dump(pw, "    ", now);
+        final boolean optical = (mCameraInfo != null && mCameraInfo.hasOpticalStabilization);
+        final boolean video = (mCameraInfo != null && mCameraInfo.hasVideoStabilization);
+        final int temperature = mThermalLadder.getTemperature();
+        pw.println("  thermal level: " + ThermalLadder.levelToString(mThermalLadder.getLevel())
+                + " (" + (temperature != ThermalLadder.UNKNOWN_TEMPERATURE
+                ? (temperature / 10f) + "C" : "unknown") + ", "
+                + mThermalLadder.getTransitionCount() + " transitions)");
+        pw.println("  stabilization: " + (optical ? "optical " : "")
+                + (video ? "video " : "")
+                + (mSoftwareStabilization ? "gyroscope" : ""));
+
+        pw.println("  prewarm (" + (isPrewarmEnabled() ? "enabled" : "disabled") + "):");
+        mPrewarm.dump(pw, "    ");
+        pw.println("  remote listeners: " + mListeners.getRegisteredCallbackCount());
+        pw.println("  remote commands: " + mCommands.getReceivedCount() + " received, "
+                + mCommands.getAppliedCount() + " applied");
+
+        pw.println("  telemetry (" + Build.MANUFACTURER + " " + Build.MODEL + "):");
+        final SessionTelemetry.Summary summary = mTelemetry.getSummary();
+        if (summary != null) {
+            summary.dump(pw, "    ");
+        } else {
+            pw.println("    not loaded yet");
+        }
+    }
+
     private void logDebug(String msg) {
         if (DEBUG) {
             Log.e(TAG, msg);
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.content.Context;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+
+/**
+ * Describes where the overlay window sits on the display and how much of it it covers.
+ * A smaller window means less to compose per frame and a smaller camera stream.
+ */
+public class OverlayGeometry {
+    public static final int ANCHOR_TOP = 0;
+    public static final int ANCHOR_CENTER = 1;
+    public static final int ANCHOR_BOTTOM = 2;
+
+    public static final float HEIGHT_MIN = 0.2f;
+    public static final float HEIGHT_MAX = 1.0f;
+
+    public final int anchor;
+    public final float heightFraction;
+    public final int offset;
+    public final boolean draggable;
+
+    public OverlayGeometry(int anchor, float heightFraction, int offset, boolean draggable) {
+        this.anchor = Math.max(ANCHOR_TOP, Math.min(ANCHOR_BOTTOM, anchor));
+        this.heightFraction = Float.isNaN(heightFraction)
+                ? HEIGHT_MAX : Math.max(HEIGHT_MIN, Math.min(HEIGHT_MAX, heightFraction));
+        this.offset = offset;
+        this.draggable = draggable;
+    }
+
+    /**
+     * @return False for values which do not describe a geometry, eg from a remote client
+     */
+    public static boolean isValid(int anchor, float heightFraction) {
+        return anchor >= ANCHOR_TOP && anchor <= ANCHOR_BOTTOM && !Float.isNaN(heightFraction);
+    }
+
+    public static OverlayGeometry fromSettings(Context context) {
+        final Settings settings = Settings.get(context);
+        return new OverlayGeometry(
+                settings.getInt(Settings.KEY_ONTHEGO_ANCHOR, ANCHOR_BOTTOM),
+                settings.getFloat(Settings.KEY_ONTHEGO_HEIGHT, HEIGHT_MAX),
+                settings.getInt(Settings.KEY_ONTHEGO_OFFSET, 0),
+                settings.getBoolean(Settings.KEY_ONTHEGO_DRAGGABLE, false));
+    }
+
+    public void persist(Context context) {
+        Settings.get(context)
+                .setInt(Settings.KEY_ONTHEGO_ANCHOR, anchor)
+                .setFloat(Settings.KEY_ONTHEGO_HEIGHT, heightFraction)
+                .setInt(Settings.KEY_ONTHEGO_OFFSET, offset)
+                .setBoolean(Settings.KEY_ONTHEGO_DRAGGABLE, draggable);
+    }
+
+    public OverlayGeometry withOffset(int newOffset) {
+        return new OverlayGeometry(anchor, heightFraction, newOffset, draggable);
+    }
+
+    public boolean isFullscreen() {
+        return heightFraction >= HEIGHT_MAX;
+    }
+
+    public int getGravity() {
+        switch (anchor) {
+            case ANCHOR_TOP:
+                return Gravity.TOP;
+            case ANCHOR_CENTER:
+                return Gravity.CENTER_VERTICAL;
+            default:
+            case ANCHOR_BOTTOM:
+                return Gravity.BOTTOM;
+        }
+    }
+
+    /**
+     * @return The sign to apply to a downward finger movement to get the new window offset
+     */
+    public int getDragDirection() {
+        return (anchor == ANCHOR_BOTTOM) ? -1 : 1;
+    }
+
+    /**
+     * @param params        The layout params of the overlay window
+     * @param displayHeight The height of the display in pixels
+     */
+    public void applyTo(WindowManager.LayoutParams params, int displayHeight) {
+        params.width = ViewGroup.LayoutParams.MATCH_PARENT;
+        if (isFullscreen()) {
+            // only hide the status bar if we cover it anyway
+            params.flags |= WindowManager.LayoutParams.FLAG_FULLSCREEN;
+            params.height = ViewGroup.LayoutParams.MATCH_PARENT;
+            params.gravity = Gravity.TOP;
+            params.y = 0;
+            return;
+        }
+
+        params.flags &= ~WindowManager.LayoutParams.FLAG_FULLSCREEN;
+        params.height = Math.round(displayHeight * heightFraction);
+        params.gravity = getGravity();
+        params.y = clampOffset(offset, params.height, displayHeight);
+    }
+
+    /**
+     * Keeps the window on screen, no matter where it has been dragged to.
+     */
+    public int clampOffset(int value, int windowHeight, int displayHeight) {
+        final int room = Math.max(0, displayHeight - windowHeight);
+        if (anchor == ANCHOR_CENTER) {
+            return Math.max(-room / 2, Math.min(room / 2, value));
+        }
+        return Math.max(0, Math.min(room, value));
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides whether the repeating preview request should run, based on how visible the overlay
+ * actually is. Pausing only stops the repeating request, the camera device and the capture
+ * session stay configured, so resuming costs a single frame.
+ * <p>
+ * Every reason to pause is counted on its own. Reasons may overlap, eg a user pause while the
+ * overlay is covered counts for both, the overall counters only count the preview itself.
+ */
+public class PreviewPauseController {
+    /** Below this alpha the preview gets paused */
+    public static final float PAUSE_ALPHA = 0.05f;
+    /** The preview only resumes above this alpha, to avoid flapping around the threshold */
+    public static final float RESUME_ALPHA = 0.1f;
+
+    /** The overlay is (almost) fully transparent */
+    public static final int REASON_ALPHA = 0;
+    /** The window manager hid or removed the overlay window */
+    public static final int REASON_HIDDEN = 1;
+    /** Another window sits on top of the overlay */
+    public static final int REASON_COVERED = 2;
+    /** The user explicitly paused the preview */
+    public static final int REASON_USER = 3;
+    /** The camera is only being prepared, without being shown yet */
+    public static final int REASON_WARMING = 4;
+    private static final int REASON_COUNT = REASON_WARMING + 1;
+
+    private static final String[] REASON_NAMES = {
+            "alpha", "hidden", "covered", "user", "warming"
+    };
+
+    public interface Listener {
+        void onPreviewPaused();
+
+        void onPreviewResumed();
+    }
+
+    private final Listener mListener;
+
+    private final boolean[] mActive = new boolean[REASON_COUNT];
+    private final long[] mActiveSince = new long[REASON_COUNT];
+    private final long[] mActiveTotal = new long[REASON_COUNT];
+    private final int[] mActiveCount = new int[REASON_COUNT];
+
+    private boolean mPaused;
+    private long mPausedSince;
+    private long mPausedTotal;
+    private int mPauseCount;
+
+    public PreviewPauseController(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param alpha The effective alpha of the overlay
+     * @param now   The current time in milliseconds
+     */
+    public void setAlpha(float alpha, long now) {
+        final boolean hidden = mActive[REASON_ALPHA]
+                ? (alpha < RESUME_ALPHA)
+                : (alpha <= PAUSE_ALPHA);
+        setReason(REASON_ALPHA, hidden, now);
+    }
+
+    /**
+     * @param visible Whether the window manager shows the overlay window
+     * @param now     The current time in milliseconds
+     */
+    public void setVisible(boolean visible, long now) {
+        setReason(REASON_HIDDEN, !visible, now);
+    }
+
+    /**
+     * @param covered Whether another window sits on top of the overlay
+     * @param now     The current time in milliseconds
+     */
+    public void setCovered(boolean covered, long now) {
+        setReason(REASON_COVERED, covered, now);
+    }
+
+    /**
+     * @param paused Whether the user explicitly paused the preview
+     * @param now    The current time in milliseconds
+     */
+    public void setUserPaused(boolean paused, long now) {
+        setReason(REASON_USER, paused, now);
+    }
+
+    /**
+     * @param warming Whether the camera is only being prepared, without being shown yet
+     * @param now     The current time in milliseconds
+     */
+    public void setWarming(boolean warming, long now) {
+        setReason(REASON_WARMING, warming, now);
+    }
+
+    public boolean isUserPaused() {
+        return mActive[REASON_USER];
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return How often the preview got paused, no matter why
+     */
+    public int getPauseCount() {
+        return mPauseCount;
+    }
+
+    /**
+     * @param now The current time in milliseconds
+     * @return The total time in milliseconds the preview has been paused, including the
+     * currently running pause
+     */
+    public long getPausedTime(long now) {
+        if (mPaused) {
+            return mPausedTotal + (now - mPausedSince);
+        }
+        return mPausedTotal;
+    }
+
+    /**
+     * @param reason One of REASON_*
+     * @return How often the reason became active
+     */
+    public int getPauseCount(int reason) {
+        return mActiveCount[reason];
+    }
+
+    /**
+     * @param reason One of REASON_*
+     * @param now    The current time in milliseconds
+     * @return The total time in milliseconds the reason was active, including right now
+     */
+    public long getPausedTime(int reason, long now) {
+        if (mActive[reason]) {
+            return mActiveTotal[reason] + (now - mActiveSince[reason]);
+        }
+        return mActiveTotal[reason];
+    }
+
+    public void dump(PrintWriter pw, String prefix, long now) {
+        pw.println(prefix + "paused: " + mPaused + ", count: " + mPauseCount
+                + ", time: " + getPausedTime(now) + "ms");
+        for (int i = 0; i < REASON_COUNT; i++) {
+            pw.println(prefix + REASON_NAMES[i] + ": " + mActive[i]
+                    + ", count: " + mActiveCount[i]
+                    + ", time: " + getPausedTime(i, now) + "ms");
+        }
+    }
+
+    private void setReason(int reason, boolean active, long now) {
+        if (mActive[reason] != active) {
+            mActive[reason] = active;
+            if (active) {
+                mActiveCount[reason]++;
+                mActiveSince[reason] = now;
+            } else {
+                mActiveTotal[reason] += (now - mActiveSince[reason]);
+            }
+        }
+        update(now);
+    }
+
+    private void update(long now) {
+        boolean shouldPause = false;
+        for (int i = 0; i < REASON_COUNT; i++) {
+            shouldPause |= mActive[i];
+        }
+        if (shouldPause == mPaused) {
+            return;
+        }
+
+        mPaused = shouldPause;
+        if (mPaused) {
+            mPauseCount++;
+            mPausedSince = now;
+            mListener.onPreviewPaused();
+        } else {
+            mPausedTotal += (now - mPausedSince);
+            mListener.onPreviewResumed();
+        }
+    }
+
+}
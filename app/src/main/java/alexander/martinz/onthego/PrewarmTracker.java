@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import java.io.PrintWriter;
+
+/**
+ * Keeps track of speculative camera warm ups: the camera gets opened and the session configured
+ * while the device is still locked, so unlocking only has to wait for a single frame.
+ * <p>
+ * A warm up either gets revealed, which is a hit and saves the part of the open -> configure
+ * chain which happened before, or gets cancelled, which is a miss and had the camera powered on
+ * for nothing.
+ */
+public class PrewarmTracker {
+    public static final int TRIGGER_SCREEN_ON = 0;
+    public static final int TRIGGER_PROXIMITY = 1;
+
+    private boolean mWarming;
+    private int mTrigger;
+    private long mStartedAt;
+    private long mReadyAt;
+
+    private final int[] mAttempts = new int[TRIGGER_PROXIMITY + 1];
+    private final int[] mHits = new int[TRIGGER_PROXIMITY + 1];
+    private long mTimeSaved;
+    private long mWastedCameraTime;
+
+    /**
+     * @param trigger What caused the warm up, one of TRIGGER_*
+     * @param now     The current time in milliseconds
+     */
+    public void onStarted(int trigger, long now) {
+        mWarming = true;
+        mTrigger = trigger;
+        mStartedAt = now;
+        mReadyAt = -1;
+        mAttempts[trigger]++;
+    }
+
+    /**
+     * The capture session is configured, revealing now only waits for the first frame.
+     */
+    public void onReady(long now) {
+        if (mWarming && mReadyAt < 0) {
+            mReadyAt = now;
+        }
+    }
+
+    /**
+     * @return The time in milliseconds the warm up saved
+     */
+    public long onRevealed(long now) {
+        if (!mWarming) {
+            return 0;
+        }
+        mWarming = false;
+        mHits[mTrigger]++;
+        final long saved = ((mReadyAt >= 0) ? Math.min(now, mReadyAt) : now) - mStartedAt;
+        mTimeSaved += saved;
+        return saved;
+    }
+
+    public void onCancelled(long now) {
+        if (!mWarming) {
+            return;
+        }
+        mWarming = false;
+        mWastedCameraTime += now - mStartedAt;
+    }
+
+    public boolean isWarming() {
+        return mWarming;
+    }
+
+    public int getAttemptCount() {
+        return mAttempts[TRIGGER_SCREEN_ON] + mAttempts[TRIGGER_PROXIMITY];
+    }
+
+    public int getHitCount() {
+        return mHits[TRIGGER_SCREEN_ON] + mHits[TRIGGER_PROXIMITY];
+    }
+
+    /**
+     * @return The warm ups which got cancelled, a running one is neither hit nor miss
+     */
+    public int getMissCount() {
+        return getAttemptCount() - getHitCount() - (mWarming ? 1 : 0);
+    }
+
+    public long getTimeSaved() {
+        return mTimeSaved;
+    }
+
+    /**
+     * @return The time in milliseconds the camera was on for warm ups which got cancelled,
+     * the closest thing to their energy cost we can measure
+     */
+    public long getWastedCameraTime() {
+        return mWastedCameraTime;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "warming: " + mWarming);
+        pw.println(prefix + "attempts: " + getAttemptCount()
+                + " (screen on: " + mAttempts[TRIGGER_SCREEN_ON]
+                + ", proximity: " + mAttempts[TRIGGER_PROXIMITY] + ")");
+        pw.println(prefix + "hits: " + getHitCount()
+                + " (screen on: " + mHits[TRIGGER_SCREEN_ON]
+                + ", proximity: " + mHits[TRIGGER_PROXIMITY] + ")");
+        pw.println(prefix + "misses: " + getMissCount());
+        final int hits = getHitCount();
+        pw.println(prefix + "time saved: " + mTimeSaved + "ms"
+                + (hits > 0 ? " (" + (mTimeSaved / hits) + "ms per hit)" : ""));
+        pw.println(prefix + "wasted camera time: " + mWastedCameraTime + "ms");
+    }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only store of compact, fixed size binary records, one per session event.
+ * <p>
+ * The store is bounded: once the current file is full it replaces the previous one, so at most
+ * two files of {@link #MAX_FILE_SIZE} bytes exist. All file access happens on a dedicated
+ * background thread, callers only ever hand over records and read a cached summary.
+ */
+public class SessionTelemetry {
+    private static final String TAG = "SessionTelemetry";
+
+    public static final int EVENT_START = 0;
+    public static final int EVENT_RESTART = 1;
+    public static final int EVENT_SCREEN_ON = 2;
+    public static final int EVENT_STOP = 3;
+
+    public static final int ERROR_NONE = 0;
+    // 1 - 5 are the CameraDevice.StateCallback.ERROR_* codes
+    public static final int ERROR_DISCONNECTED = 100;
+    public static final int ERROR_CONFIGURE_FAILED = 101;
+    public static final int ERROR_OPEN_FAILED = 102;
+
+    private static final int VERSION = 1;
+    /** version, event, camera, width, height, fps * 10, 3 latencies, error, timestamp, padding */
+    static final int RECORD_SIZE = 36;
+    static final int MAX_FILE_SIZE = RECORD_SIZE * 1024;
+    private static final byte[] PADDING = new byte[3];
+
+    private static final String FILE_CURRENT = "sessions.bin";
+    private static final String FILE_PREVIOUS = "sessions.bin.1";
+
+    private final File mDirectory;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private volatile Summary mSummary;
+
+    public static class Record {
+        public final long timestamp;
+        public final int event;
+        public final int cameraType;
+        public final int previewWidth;
+        public final int previewHeight;
+        public final float fps;
+        public final int openLatency;
+        public final int configureLatency;
+        public final int firstFrameLatency;
+        public final int errorCode;
+
+        public Record(long timestamp, int event, int cameraType, int previewWidth,
+                int previewHeight, float fps, int openLatency, int configureLatency,
+                int firstFrameLatency, int errorCode) {
+            this.timestamp = timestamp;
+            this.event = event;
+            this.cameraType = cameraType;
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.fps = fps;
+            this.openLatency = openLatency;
+            this.configureLatency = configureLatency;
+            this.firstFrameLatency = firstFrameLatency;
+            this.errorCode = errorCode;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeByte(event);
+            out.writeByte(cameraType);
+            out.writeShort(previewWidth);
+            out.writeShort(previewHeight);
+            out.writeShort(Math.round(fps * 10));
+            out.writeInt(openLatency);
+            out.writeInt(configureLatency);
+            out.writeInt(firstFrameLatency);
+            out.writeInt(errorCode);
+            out.writeLong(timestamp);
+            // padding, room for future fields
+            out.write(PADDING);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            final int version = in.readUnsignedByte();
+            final int event = in.readUnsignedByte();
+            final int cameraType = in.readUnsignedByte();
+            final int width = in.readUnsignedShort();
+            final int height = in.readUnsignedShort();
+            final float fps = in.readUnsignedShort() / 10f;
+            final int open = in.readInt();
+            final int configure = in.readInt();
+            final int firstFrame = in.readInt();
+            final int error = in.readInt();
+            final long timestamp = in.readLong();
+            in.skipBytes(PADDING.length);
+            if (version != VERSION) {
+                return null;
+            }
+            return new Record(timestamp, event, cameraType, width, height, fps,
+                    open, configure, firstFrame, error);
+        }
+    }
+
+    /**
+     * Aggregated view of all stored records.
+     */
+    public static class Summary {
+        public final int recordCount;
+        public final int[] eventCounts = new int[EVENT_STOP + 1];
+        public final int errorCount;
+        public final float averageFps;
+        public final int[] openLatency;
+        public final int[] configureLatency;
+        public final int[] firstFrameLatency;
+        public final String mostUsedPreviewSize;
+
+        static final int[] PERCENTILES = { 50, 90, 99 };
+
+        Summary(List<Record> records) {
+            recordCount = records.size();
+
+            final int[] open = new int[recordCount];
+            final int[] configure = new int[recordCount];
+            final int[] firstFrame = new int[recordCount];
+            int openCount = 0, configureCount = 0, firstFrameCount = 0;
+            int errors = 0, fpsCount = 0;
+            float fpsSum = 0f;
+            final List<String> sizes = new ArrayList<>();
+            final List<Integer> sizeCounts = new ArrayList<>();
+
+            for (Record record : records) {
+                if (record.event >= 0 && record.event < eventCounts.length) {
+                    eventCounts[record.event]++;
+                }
+                if (record.errorCode != ERROR_NONE) {
+                    errors++;
+                }
+                if (record.openLatency >= 0) {
+                    open[openCount++] = record.openLatency;
+                }
+                if (record.configureLatency >= 0) {
+                    configure[configureCount++] = record.configureLatency;
+                }
+                if (record.firstFrameLatency >= 0) {
+                    firstFrame[firstFrameCount++] = record.firstFrameLatency;
+                }
+                if (record.fps > 0f) {
+                    fpsSum += record.fps;
+                    fpsCount++;
+                }
+                if (record.previewWidth > 0) {
+                    final String size = record.previewWidth + "x" + record.previewHeight;
+                    final int index = sizes.indexOf(size);
+                    if (index < 0) {
+                        sizes.add(size);
+                        sizeCounts.add(1);
+                    } else {
+                        sizeCounts.set(index, sizeCounts.get(index) + 1);
+                    }
+                }
+            }
+
+            errorCount = errors;
+            averageFps = (fpsCount > 0) ? fpsSum / fpsCount : 0f;
+            openLatency = percentiles(open, openCount);
+            configureLatency = percentiles(configure, configureCount);
+            firstFrameLatency = percentiles(firstFrame, firstFrameCount);
+
+            int best = -1;
+            for (int i = 0; i < sizes.size(); i++) {
+                if (best < 0 || sizeCounts.get(i) > sizeCounts.get(best)) {
+                    best = i;
+                }
+            }
+            mostUsedPreviewSize = (best >= 0) ? sizes.get(best) : "-";
+        }
+
+        /**
+         * @return The nearest-rank percentiles of {@link #PERCENTILES} or -1 without values
+         */
+        static int[] percentiles(int[] values, int count) {
+            final int[] result = new int[PERCENTILES.length];
+            if (count == 0) {
+                Arrays.fill(result, -1);
+                return result;
+            }
+
+            Arrays.sort(values, 0, count);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                final int rank = (int) Math.ceil(PERCENTILES[i] / 100.0 * count);
+                result[i] = values[Math.max(0, Math.min(count, rank) - 1)];
+            }
+            return result;
+        }
+
+        public void dump(PrintWriter pw, String prefix) {
+            pw.println(prefix + "records: " + recordCount + " (start: " + eventCounts[EVENT_START]
+                    + ", restart: " + eventCounts[EVENT_RESTART]
+                    + ", screen on: " + eventCounts[EVENT_SCREEN_ON]
+                    + ", stop: " + eventCounts[EVENT_STOP] + ")");
+            pw.println(prefix + "errors: " + errorCount);
+            pw.println(prefix + "average fps: " + averageFps);
+            pw.println(prefix + "most used preview size: " + mostUsedPreviewSize);
+            dumpPercentiles(pw, prefix + "open latency ", openLatency);
+            dumpPercentiles(pw, prefix + "configure latency ", configureLatency);
+            dumpPercentiles(pw, prefix + "first frame latency ", firstFrameLatency);
+        }
+
+        private static void dumpPercentiles(PrintWriter pw, String prefix, int[] values) {
+            final StringBuilder sb = new StringBuilder(prefix);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append("p").append(PERCENTILES[i]).append(": ").append(values[i]).append("ms");
+                if (i != PERCENTILES.length - 1) {
+                    sb.append(", ");
+                }
+            }
+            pw.println(sb.toString());
+        }
+    }
+
+    public SessionTelemetry(File directory) {
+        mDirectory = directory;
+        mThread = new HandlerThread("OnTheGoTelemetry", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        // load what is already there, so the summary is available right away
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                updateSummary();
+            }
+        });
+    }
+
+    /**
+     * Queues the record to be appended, returns immediately.
+     */
+    public void append(final Record record) {
+        mHandler.post(new Runnable() {
+            @Override public void run() {
+                write(record);
+                updateSummary();
+            }
+        });
+    }
+
+    /**
+     * @return The summary of all records written so far or null if not yet loaded
+     */
+    public Summary getSummary() {
+        return mSummary;
+    }
+
+    /**
+     * Lets pending records get written and stops the background thread.
+     */
+    public void release() {
+        mThread.quitSafely();
+    }
+
+    private void write(Record record) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+
+        final File current = new File(mDirectory, FILE_CURRENT);
+        if (current.length() + RECORD_SIZE > MAX_FILE_SIZE) {
+            final File previous = new File(mDirectory, FILE_PREVIOUS);
+            if ((previous.exists() && !previous.delete()) || !current.renameTo(previous)) {
+                Log.w(TAG, "Could not rotate " + current);
+            }
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(current, true));
+            record.write(out);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Could not write record", ioe);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void updateSummary() {
+        final List<Record> records = new ArrayList<>();
+        readRecords(new File(mDirectory, FILE_PREVIOUS), records);
+        readRecords(new File(mDirectory, FILE_CURRENT), records);
+        mSummary = new Summary(records);
+    }
+
+    private static void readRecords(File file, List<Record> records) {
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final int count = (int) (file.length() / RECORD_SIZE);
+            for (int i = 0; i < count; i++) {
+                final Record record = Record.read(in);
+                if (record != null) {
+                    records.add(record);
+                }
+            }
+        } catch (EOFException eofe) {
+            // a truncated last record, ignore it
+        } catch (IOException ioe) {
+            Log.w(TAG, "Could not read " + file, ioe);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+}
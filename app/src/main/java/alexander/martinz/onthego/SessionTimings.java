@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+/**
+ * Keeps track of the open -> configure -> first frame chain of the current camera session and
+ * of the frame rate while streaming. All times are in milliseconds of the same clock.
+ */
+public class SessionTimings {
+    /** Gaps between frames above this are pauses and do not count as streaming time */
+    private static final long MAX_FRAME_GAP_NS = 200000000L;
+
+    private boolean mActive;
+    private int mEvent = -1;
+    private long mBeginAt = -1;
+    private long mOpenRequestedAt = -1;
+    private long mOpenedAt = -1;
+    private long mConfigureRequestedAt = -1;
+    private long mConfiguredAt = -1;
+    private long mFirstFrameAt = -1;
+    private int mErrorCode;
+    private boolean mRecorded;
+
+    private long mFrameCount;
+    private long mLastFrameTimestamp = -1;
+    private long mStreamingNs;
+    private long mStreamingIntervals;
+
+    /**
+     * Starts tracking a new camera session.
+     *
+     * @param event The event which caused the session, one of SessionTelemetry.EVENT_*
+     * @param now   The current time
+     */
+    public void begin(int event, long now) {
+        mActive = true;
+        mEvent = event;
+        mBeginAt = now;
+        mOpenRequestedAt = -1;
+        mOpenedAt = -1;
+        mConfigureRequestedAt = -1;
+        mConfiguredAt = -1;
+        mFirstFrameAt = -1;
+        mErrorCode = 0;
+        mRecorded = false;
+        mFrameCount = 0;
+        mLastFrameTimestamp = -1;
+        mStreamingNs = 0;
+        mStreamingIntervals = 0;
+    }
+
+    /**
+     * The session was prepared in the background and only now gets shown, from the user's
+     * point of view it starts here.
+     */
+    public void onRevealed(long now) {
+        mBeginAt = now;
+    }
+
+    public void onOpenRequested(long now) {
+        mOpenRequestedAt = now;
+    }
+
+    public void onOpened(long now) {
+        mOpenedAt = now;
+    }
+
+    public void onConfigureRequested(long now) {
+        mConfigureRequestedAt = now;
+    }
+
+    public void onConfigured(long now) {
+        mConfiguredAt = now;
+    }
+
+    public void onError(int errorCode) {
+        mErrorCode = errorCode;
+    }
+
+    /**
+     * @param now             The current time
+     * @param sensorTimestamp The sensor timestamp of the frame in nanoseconds
+     * @return True if this is the first frame of the session
+     */
+    public boolean onFrame(long now, long sensorTimestamp) {
+        mFrameCount++;
+        if (mLastFrameTimestamp >= 0) {
+            final long gap = sensorTimestamp - mLastFrameTimestamp;
+            if (gap > 0 && gap < MAX_FRAME_GAP_NS) {
+                mStreamingNs += gap;
+                mStreamingIntervals++;
+            }
+        }
+        mLastFrameTimestamp = sensorTimestamp;
+
+        if (mFirstFrameAt < 0) {
+            mFirstFrameAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    public void end() {
+        mActive = false;
+    }
+
+    /**
+     * Marks the session as written to the telemetry store.
+     *
+     * @return False if it already was
+     */
+    public boolean markRecorded() {
+        if (mRecorded) {
+            return false;
+        }
+        mRecorded = true;
+        return true;
+    }
+
+    public int getEvent() {
+        return mEvent;
+    }
+
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    public boolean hasFirstFrame() {
+        return mFirstFrameAt >= 0;
+    }
+
+    /**
+     * @return The time from requesting to open the camera until it got opened or -1
+     */
+    public int getOpenLatency() {
+        return latency(mOpenRequestedAt, mOpenedAt);
+    }
+
+    /**
+     * @return The time from requesting the capture session until it got configured or -1
+     */
+    public int getConfigureLatency() {
+        return latency(mConfigureRequestedAt, mConfiguredAt);
+    }
+
+    /**
+     * @return The time from the start of the session until the first frame arrived or -1
+     */
+    public int getFirstFrameLatency() {
+        return latency(mBeginAt, mFirstFrameAt);
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return The average frames per second while streaming, pauses excluded
+     */
+    public float getFps() {
+        if (mStreamingNs <= 0) {
+            return 0f;
+        }
+        return mStreamingIntervals * 1000000000f / mStreamingNs;
+    }
+
+    private static int latency(long start, long end) {
+        if (start < 0 || end < start) {
+            return -1;
+        }
+        return (int) (end - start);
+    }
+
+}
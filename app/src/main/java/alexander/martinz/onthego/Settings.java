@@ -24,6 +24,14 @@ public class Settings {
     public static final String KEY_ONTHEGO_ALPHA = "onthego_alpha";
     public static final String KEY_ONTHEGO_CAMERA = "onthego_camera";
     public static final String KEY_ONTHEGO_SERVICE_RESTART = "onthego_service_restart";
+    public static final String KEY_ONTHEGO_ANCHOR = "onthego_anchor";
+    public static final String KEY_ONTHEGO_HEIGHT = "onthego_height";
+    public static final String KEY_ONTHEGO_OFFSET = "onthego_offset";
+    public static final String KEY_ONTHEGO_DRAGGABLE = "onthego_draggable";
+    public static final String KEY_ONTHEGO_STABILIZATION = "onthego_stabilization";
+    public static final String KEY_ONTHEGO_RENDER_MODE = "onthego_render_mode";
+    public static final String KEY_ONTHEGO_PREWARM = "onthego_prewarm";
+    public static final String KEY_ONTHEGO_PREWARM_PROXIMITY = "onthego_prewarm_proximity";
 
     private static Settings sInstance;
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.view.Surface;
+
+/**
+ * {@link CameraBackend} backed by the real {@link CameraManager}.
+ */
+public class SystemCameraBackend implements CameraBackend {
+    private final CameraManager mCameraManager;
+
+    public SystemCameraBackend(Context context) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    @Override public String[] getCameraIdList() throws CameraAccessException {
+        return mCameraManager.getCameraIdList();
+    }
+
+    @Override public CameraInfo getCameraInfo(String cameraId) throws CameraAccessException {
+        return CameraInfo.fromCharacteristics(mCameraManager.getCameraCharacteristics(cameraId));
+    }
+
+    @Override
+    public void openCamera(String cameraId, CameraDevice.StateCallback callback, Handler handler)
+            throws CameraAccessException {
+        mCameraManager.openCamera(cameraId, callback, handler);
+    }
+
+    @Override
+    public CaptureRequest createPreviewRequest(CameraDevice device, Surface target,
+            CameraInfo info, boolean stabilize, boolean noiseReduction)
+            throws CameraAccessException {
+        final CaptureRequest.Builder builder =
+                device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        builder.addTarget(target);
+
+        // Auto focus should be continuous for camera preview.
+        builder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        // Flash is automatically enabled when necessary.
+        builder.set(CaptureRequest.CONTROL_AE_MODE,
+                CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+
+        if (stabilize && info.hasOpticalStabilization) {
+            builder.set(CaptureRequest.LENS_OPTICAL_STABILIZATION_MODE,
+                    CaptureRequest.LENS_OPTICAL_STABILIZATION_MODE_ON);
+        }
+        if (stabilize && info.hasVideoStabilization) {
+            builder.set(CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE,
+                    CaptureRequest.CONTROL_VIDEO_STABILIZATION_MODE_ON);
+        }
+        if (!noiseReduction && info.hasNoiseReductionOff) {
+            builder.set(CaptureRequest.NOISE_REDUCTION_MODE,
+                    CaptureRequest.NOISE_REDUCTION_MODE_OFF);
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+/**
+ * Trades preview quality for heat on long sessions. Each level adds to the ones below it:
+ * <ol>
+ * <li>{@link #LEVEL_REDUCED_RESOLUTION} streams a smaller preview size</li>
+ * <li>{@link #LEVEL_NO_NOISE_REDUCTION} turns off noise reduction</li>
+ * <li>{@link #LEVEL_NO_ANALYSIS} stops gyroscope stabilization and thins out edge detection</li>
+ * </ol>
+ * Heating up steps straight to the level of the current temperature. Cooling down goes back one
+ * level at a time, only once the temperature dropped {@link #HYSTERESIS} below the threshold and
+ * the current level has been held for at least {@link #MIN_DWELL_MS}.
+ */
+public class ThermalLadder {
+    public static final int LEVEL_NORMAL = 0;
+    public static final int LEVEL_REDUCED_RESOLUTION = 1;
+    public static final int LEVEL_NO_NOISE_REDUCTION = 2;
+    public static final int LEVEL_NO_ANALYSIS = 3;
+
+    /** Battery temperatures in tenths of a degree Celsius to enter each level at */
+    static final int[] THRESHOLDS = { 0, 400, 420, 440 };
+    /** How far below the threshold of a level the temperature has to drop to leave it */
+    static final int HYSTERESIS = 20;
+    static final long MIN_DWELL_MS = 60 * 1000;
+
+    public static final int UNKNOWN_TEMPERATURE = Integer.MIN_VALUE;
+
+    public interface Listener {
+        /**
+         * @param oldLevel    The previous level
+         * @param newLevel    The new level
+         * @param temperature The temperature which caused the change, in tenths of a degree
+         */
+        void onLevelChanged(int oldLevel, int newLevel, int temperature);
+    }
+
+    private final Listener mListener;
+
+    private int mLevel = LEVEL_NORMAL;
+    private int mTemperature = UNKNOWN_TEMPERATURE;
+    private long mLevelSince;
+    private int mTransitionCount;
+
+    public ThermalLadder(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param temperature The battery temperature in tenths of a degree Celsius
+     * @param now         The current time in milliseconds
+     */
+    public void setTemperature(int temperature, long now) {
+        mTemperature = temperature;
+
+        int target = LEVEL_NORMAL;
+        for (int level = LEVEL_NO_ANALYSIS; level > LEVEL_NORMAL; level--) {
+            if (temperature >= THRESHOLDS[level]) {
+                target = level;
+                break;
+            }
+        }
+
+        if (target > mLevel) {
+            setLevel(target, now);
+        } else if (mLevel > LEVEL_NORMAL
+                && temperature <= THRESHOLDS[mLevel] - HYSTERESIS
+                && now - mLevelSince >= MIN_DWELL_MS) {
+            setLevel(mLevel - 1, now);
+        }
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return The last temperature in tenths of a degree or {@link #UNKNOWN_TEMPERATURE}
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    public int getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    public static String levelToString(int level) {
+        switch (level) {
+            case LEVEL_NORMAL:
+                return "normal";
+            case LEVEL_REDUCED_RESOLUTION:
+                return "reduced resolution";
+            case LEVEL_NO_NOISE_REDUCTION:
+                return "no noise reduction";
+            case LEVEL_NO_ANALYSIS:
+                return "no analysis";
+            default:
+                return "unknown";
+        }
+    }
+
+    private void setLevel(int level, long now) {
+        final int oldLevel = mLevel;
+        mLevel = level;
+        mLevelSince = now;
+        mTransitionCount++;
+        mListener.onLevelChanged(oldLevel, level, mTemperature);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandCoalescerTest {
+
+    /** Records what got applied, in order */
+    private static class RecordingTarget implements CommandCoalescer.Target {
+        final List<String> applied = new ArrayList<>();
+        float alpha = -1f;
+        int camera = -1;
+        boolean paused;
+        OverlayGeometry geometry;
+        int alphaCount;
+        boolean alphaWentBack;
+
+        @Override public void applyCamera(int cameraType) {
+            camera = cameraType;
+            applied.add("camera");
+        }
+
+        @Override public void applyGeometry(OverlayGeometry geometry) {
+            this.geometry = geometry;
+            applied.add("geometry");
+        }
+
+        @Override public void applyAlpha(float alpha) {
+            alphaWentBack |= (alpha < this.alpha);
+            this.alpha = alpha;
+            alphaCount++;
+            applied.add("alpha");
+        }
+
+        @Override public void applyPaused(boolean paused) {
+            this.paused = paused;
+            applied.add("paused");
+        }
+    }
+
+    /** Runs nothing until asked to */
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> queue = new ArrayList<>();
+
+        @Override public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll() {
+            while (!queue.isEmpty()) {
+                queue.remove(0).run();
+            }
+        }
+    }
+
+    @Test public void onlyTheLatestValueIsApplied() {
+        final QueueExecutor executor = new QueueExecutor();
+        final RecordingTarget target = new RecordingTarget();
+        final CommandCoalescer coalescer = new CommandCoalescer(executor, target);
+
+        for (int i = 1; i <= 1000; i++) {
+            coalescer.setAlpha(i / 1000f);
+        }
+        assertEquals(1, executor.queue.size());
+
+        executor.runAll();
+        assertEquals(1, target.alphaCount);
+        assertEquals(1f, target.alpha, 0f);
+        assertEquals(1000, coalescer.getReceivedCount());
+        assertEquals(1, coalescer.getAppliedCount());
+    }
+
+    @Test public void batchIsAppliedTogetherInOrder() {
+        final QueueExecutor executor = new QueueExecutor();
+        final RecordingTarget target = new RecordingTarget();
+        final CommandCoalescer coalescer = new CommandCoalescer(executor, target);
+
+        final OverlayGeometry geometry =
+                new OverlayGeometry(OverlayGeometry.ANCHOR_TOP, 0.5f, 0, false);
+        coalescer.set(0.3f, OnTheGoService.CAMERA_FRONT, true, geometry);
+        executor.runAll();
+
+        assertEquals(4, target.applied.size());
+        assertEquals("camera", target.applied.get(0));
+        assertEquals("geometry", target.applied.get(1));
+        assertEquals("alpha", target.applied.get(2));
+        assertEquals("paused", target.applied.get(3));
+        assertEquals(OnTheGoService.CAMERA_FRONT, target.camera);
+        assertTrue(target.geometry == geometry);
+        assertTrue(target.paused);
+    }
+
+    @Test public void onlyGivenValuesAreApplied() {
+        final QueueExecutor executor = new QueueExecutor();
+        final RecordingTarget target = new RecordingTarget();
+        final CommandCoalescer coalescer = new CommandCoalescer(executor, target);
+
+        coalescer.set(null, null, true, null);
+        executor.runAll();
+        assertEquals(1, target.applied.size());
+        assertEquals("paused", target.applied.get(0));
+    }
+
+    @Test public void commandsAfterAnApplyGetScheduledAgain() {
+        final QueueExecutor executor = new QueueExecutor();
+        final RecordingTarget target = new RecordingTarget();
+        final CommandCoalescer coalescer = new CommandCoalescer(executor, target);
+
+        coalescer.setAlpha(0.2f);
+        executor.runAll();
+        coalescer.setAlpha(0.4f);
+        assertEquals(1, executor.queue.size());
+        executor.runAll();
+
+        assertEquals(2, target.alphaCount);
+        assertEquals(0.4f, target.alpha, 0f);
+    }
+
+    @Test public void floodFromManyThreadsEndsWithTheLatestValues() throws Exception {
+        final ExecutorService applier = Executors.newSingleThreadExecutor();
+        final RecordingTarget target = new RecordingTarget();
+        final CommandCoalescer coalescer = new CommandCoalescer(applier, target);
+
+        final int commands = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        // one writer per command type, so the latest value of each is well defined
+        threads.add(new Thread(new Runnable() {
+            @Override public void run() {
+                await(start);
+                for (int i = 1; i <= commands; i++) {
+                    coalescer.setAlpha((float) i / commands);
+                }
+            }
+        }));
+        threads.add(new Thread(new Runnable() {
+            @Override public void run() {
+                await(start);
+                for (int i = 1; i <= commands; i++) {
+                    coalescer.setCamera(i % 2);
+                }
+            }
+        }));
+        threads.add(new Thread(new Runnable() {
+            @Override public void run() {
+                await(start);
+                for (int i = 1; i <= commands; i++) {
+                    coalescer.setPaused(i % 2 == 0);
+                }
+            }
+        }));
+        threads.add(new Thread(new Runnable() {
+            @Override public void run() {
+                await(start);
+                for (int i = 1; i <= commands; i++) {
+                    coalescer.setGeometry(
+                            new OverlayGeometry(OverlayGeometry.ANCHOR_CENTER, 0.5f, i, true));
+                }
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        applier.shutdown();
+        assertTrue(applier.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(4L * commands, coalescer.getReceivedCount());
+        assertTrue("applied " + coalescer.getAppliedCount(),
+                coalescer.getAppliedCount() < coalescer.getReceivedCount());
+        assertFalse(target.alphaWentBack);
+        assertEquals(1f, target.alpha, 0f);
+        assertEquals(commands % 2, target.camera);
+        assertTrue(target.paused);
+        assertEquals(commands, target.geometry.offset);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Times {@link EdgeDetector#detect(byte[], int[])} at the input sizes the renderer may see,
+ * single threaded and split across cores. The timing only runs with {@code -Dbenchmark=true}
+ * and prints its numbers, a plain test run only checks that every thread count produces the
+ * same edge map.
+ * <p>
+ * JVM numbers are not device numbers, but they show how the kernel scales with the input size
+ * and the thread count.
+ */
+public class EdgeDetectorBenchmark {
+    private static final int[][] SIZES = {
+            { 160, 90 }, { 320, 180 }, { 640, 360 }, { 1280, 720 }
+    };
+    private static final int THRESHOLD = 160;
+    private static final int EDGE_COLOR = 0xffffffff;
+    /** Pixels to process per measurement, so small inputs get enough iterations */
+    private static final long PIXELS_PER_RUN = 20L * 1280 * 720;
+    private static final int WARM_UP_RUNS = 2;
+    private static final int RUNS = 5;
+    /** The detector caps this at its own maximum */
+    private static final int[] THREAD_COUNTS = { 1, 4 };
+
+    @Test public void threadCountsAgree() {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] luma = createFrame(width, height);
+            int[] reference = null;
+
+            for (int threads : THREAD_COUNTS) {
+                final EdgeDetector detector =
+                        new EdgeDetector(width, height, THRESHOLD, EDGE_COLOR, threads);
+                final int[] pixels = new int[width * height];
+                try {
+                    detector.detect(luma, pixels);
+                } finally {
+                    detector.release();
+                }
+
+                if (reference == null) {
+                    reference = pixels;
+                } else {
+                    assertTrue(width + "x" + height + " differs with " + threads + " threads",
+                            Arrays.equals(reference, pixels));
+                }
+            }
+        }
+    }
+
+    @Test public void detect() {
+        assumeTrue("run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+
+        System.out.println("EdgeDetector.detect(), "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] luma = createFrame(width, height);
+
+            for (int threads : THREAD_COUNTS) {
+                final EdgeDetector detector =
+                        new EdgeDetector(width, height, THRESHOLD, EDGE_COLOR, threads);
+                final int[] pixels = new int[width * height];
+                try {
+                    final double micros = measure(detector, luma, pixels);
+                    System.out.println(String.format("  %4dx%-4d %d thread(s): %8.1f us/frame",
+                            width, height, detector.getThreadCount(), micros));
+                } finally {
+                    detector.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The best time per frame in microseconds
+     */
+    private static double measure(EdgeDetector detector, byte[] luma, int[] pixels) {
+        final int iterations = (int) Math.max(1, PIXELS_PER_RUN / luma.length);
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < WARM_UP_RUNS + RUNS; run++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                detector.detect(luma, pixels);
+            }
+            final double micros = (System.nanoTime() - start) / 1000.0 / iterations;
+            if (run >= WARM_UP_RUNS) {
+                best = Math.min(best, micros);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A few soft gradients with hard edges and sensor noise, roughly what a camera would see.
+     */
+    private static byte[] createFrame(int width, int height) {
+        final Random random = new Random(42);
+        final byte[] luma = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (x * 255 / width + y * 64 / height) & 0xff;
+                if ((x / (width / 8)) % 2 == (y / (height / 4)) % 2) {
+                    value = 255 - value;
+                }
+                value += random.nextInt(17) - 8;
+                luma[y * width + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        return luma;
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import android.util.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 22)
+public class EdgeRendererTest {
+    private static final Size[] YUV_SIZES = {
+            new Size(1920, 1080), new Size(1280, 720), new Size(960, 720),
+            new Size(640, 480), new Size(640, 360), new Size(320, 240), new Size(320, 180)
+    };
+    private static final Size PREVIEW = new Size(1920, 1080);
+
+    @Test public void picksTheSmallestWideEnoughSize() {
+        assertEquals(new Size(640, 360), EdgeRenderer.chooseYuvSize(YUV_SIZES, PREVIEW, 1f));
+    }
+
+    @Test public void scaleShrinksTheStream() {
+        // the stream is all the edge map costs, running hot has to make it smaller
+        assertEquals(new Size(320, 180), EdgeRenderer.chooseYuvSize(YUV_SIZES, PREVIEW, 0.5f));
+    }
+
+    @Test public void fallsBackToTheSmallestSize() {
+        final Size[] sizes = { new Size(1600, 1200), new Size(800, 600) };
+        assertEquals(new Size(800, 600), EdgeRenderer.chooseYuvSize(sizes, PREVIEW, 1f));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scripted camera with a back and a front camera. Every callback is posted to the main looper
+ * after the configured latency, so the test scheduler decides when things happen.
+ */
+class FakeCameraBackend implements CameraBackend {
+    static final String ID_BACK = "0";
+    static final String ID_FRONT = "1";
+
+    private static final Size[] SIZES = {
+            new Size(1920, 1080), new Size(1280, 720), new Size(960, 540), new Size(640, 360)
+    };
+    /** Goes below the preview sizes, for the edge map at a reduced resolution */
+    private static final Size[] YUV_SIZES = {
+            new Size(1920, 1080), new Size(1280, 720), new Size(960, 540), new Size(640, 360),
+            new Size(320, 180)
+    };
+
+    final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    int openLatency = 150;
+    int configureLatency = 80;
+    int firstFrameLatency = 50;
+    int frameInterval = 33;
+    /** One of the CameraDevice.StateCallback.ERROR_* codes, 0 to open successfully */
+    int openError;
+    boolean configureFails;
+
+    private final List<FakeCameraDevice> mDevices = new ArrayList<>();
+
+    @Override public String[] getCameraIdList() {
+        return new String[] { ID_BACK, ID_FRONT };
+    }
+
+    @Override public CameraInfo getCameraInfo(String cameraId) throws CameraAccessException {
+        final int facing = ID_FRONT.equals(cameraId)
+                ? CameraCharacteristics.LENS_FACING_FRONT
+                : CameraCharacteristics.LENS_FACING_BACK;
+        return new CameraInfo(facing, 90, SIZES, SIZES, YUV_SIZES, false, false, true,
+                CameraInfo.DEFAULT_FOCAL_LENGTH_RATIO);
+    }
+
+    @Override
+    public void openCamera(String cameraId, final CameraDevice.StateCallback callback,
+            Handler handler) throws CameraAccessException {
+        final FakeCameraDevice device = new FakeCameraDevice(this, cameraId);
+        mDevices.add(device);
+
+        final int error = openError;
+        (handler != null ? handler : mainHandler).postDelayed(new Runnable() {
+            @Override public void run() {
+                if (error != 0) {
+                    callback.onError(device, error);
+                } else {
+                    callback.onOpened(device);
+                }
+            }
+        }, openLatency);
+    }
+
+    @Override
+    public CaptureRequest createPreviewRequest(CameraDevice device, Surface target,
+            CameraInfo info, boolean stabilize, boolean noiseReduction) {
+        // requests can not be built without the framework, the fake session ignores them
+        return null;
+    }
+
+    List<FakeCameraDevice> getDevices() {
+        return mDevices;
+    }
+
+    int getOpenDeviceCount() {
+        int count = 0;
+        for (FakeCameraDevice device : mDevices) {
+            if (!device.isClosed()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int getOpenSessionCount() {
+        int count = 0;
+        for (FakeCameraDevice device : mDevices) {
+            for (FakeCaptureSession session : device.getSessions()) {
+                if (!session.isClosed()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    int getRepeatingSessionCount() {
+        int count = 0;
+        for (FakeCameraDevice device : mDevices) {
+            for (FakeCaptureSession session : device.getSessions()) {
+                if (session.isRepeating()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of devices which got closed more than once
+     */
+    int getDoubleClosedCount() {
+        int count = 0;
+        for (FakeCameraDevice device : mDevices) {
+            if (device.getCloseCount() > 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
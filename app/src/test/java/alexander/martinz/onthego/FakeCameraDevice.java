@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Camera device of the {@link FakeCameraBackend}. Like the real one, creating a new session
+ * closes the previous one and closing the device closes its session.
+ */
+class FakeCameraDevice extends CameraDevice {
+    private final FakeCameraBackend mBackend;
+    private final String mId;
+    private final List<FakeCaptureSession> mSessions = new ArrayList<>();
+    private int mCloseCount;
+
+    FakeCameraDevice(FakeCameraBackend backend, String id) {
+        mBackend = backend;
+        mId = id;
+    }
+
+    @Override public String getId() {
+        return mId;
+    }
+
+    @Override public CaptureRequest.Builder createCaptureRequest(int templateType) {
+        throw new UnsupportedOperationException("Requests are built by the backend");
+    }
+
+    @Override
+    public void createCaptureSession(List<Surface> outputs,
+            final CameraCaptureSession.StateCallback callback, Handler handler) {
+        if (isClosed()) {
+            throw new IllegalStateException("CameraDevice was already closed");
+        }
+        closeSessions();
+
+        final FakeCaptureSession session = new FakeCaptureSession(mBackend, this);
+        mSessions.add(session);
+
+        final boolean fails = mBackend.configureFails;
+        (handler != null ? handler : mBackend.mainHandler).postDelayed(new Runnable() {
+            @Override public void run() {
+                if (session.isClosed()) {
+                    // replaced or closed before it was configured
+                    return;
+                }
+                if (fails) {
+                    session.close();
+                    callback.onConfigureFailed(session);
+                } else {
+                    callback.onConfigured(session);
+                }
+            }
+        }, mBackend.configureLatency);
+    }
+
+    @Override public void close() {
+        mCloseCount++;
+        closeSessions();
+    }
+
+    private void closeSessions() {
+        for (FakeCaptureSession session : mSessions) {
+            session.close();
+        }
+    }
+
+    boolean isClosed() {
+        return mCloseCount > 0;
+    }
+
+    int getCloseCount() {
+        return mCloseCount;
+    }
+
+    List<FakeCaptureSession> getSessions() {
+        return mSessions;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.List;
+
+/**
+ * Capture session of the {@link FakeCameraDevice}, a repeating request produces frames every
+ * {@link FakeCameraBackend#frameInterval} after the first frame latency.
+ */
+class FakeCaptureSession extends CameraCaptureSession {
+    private final FakeCameraBackend mBackend;
+    private final FakeCameraDevice mDevice;
+
+    private boolean mClosed;
+    private CaptureCallback mCallback;
+    private Handler mHandler;
+    private long mFrameNumber;
+    private int mSequenceId;
+
+    FakeCaptureSession(FakeCameraBackend backend, FakeCameraDevice device) {
+        mBackend = backend;
+        mDevice = device;
+    }
+
+    @Override public CameraDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public int capture(CaptureRequest request, CaptureCallback listener, Handler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int captureBurst(List<CaptureRequest> requests, CaptureCallback listener,
+            Handler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int setRepeatingRequest(CaptureRequest request, CaptureCallback listener,
+            Handler handler) {
+        checkNotClosed();
+        stopFrames();
+        mCallback = listener;
+        mHandler = (handler != null) ? handler : mBackend.mainHandler;
+        mHandler.postDelayed(mFrameRunnable, mBackend.firstFrameLatency);
+        return mSequenceId;
+    }
+
+    @Override
+    public int setRepeatingBurst(List<CaptureRequest> requests, CaptureCallback listener,
+            Handler handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public void stopRepeating() {
+        checkNotClosed();
+        stopFrames();
+    }
+
+    @Override public void abortCaptures() {
+        checkNotClosed();
+        stopFrames();
+    }
+
+    @Override public void close() {
+        mClosed = true;
+        stopFrames();
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    boolean isRepeating() {
+        return mCallback != null;
+    }
+
+    private void checkNotClosed() {
+        if (mClosed) {
+            throw new IllegalStateException("Session has been closed");
+        }
+    }
+
+    private void stopFrames() {
+        mSequenceId++;
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFrameRunnable);
+        }
+        mCallback = null;
+    }
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override public void run() {
+            if (mCallback == null) {
+                return;
+            }
+            final int sequenceId = mSequenceId;
+            final long timestamp = SystemClock.elapsedRealtime() * 1000000L;
+            mCallback.onCaptureStarted(FakeCaptureSession.this, null, timestamp, mFrameNumber++);
+            // the callback may have stopped or replaced the stream
+            if (mCallback != null && sequenceId == mSequenceId) {
+                mHandler.postDelayed(this, mBackend.frameInterval);
+            }
+        }
+    };
+
+}
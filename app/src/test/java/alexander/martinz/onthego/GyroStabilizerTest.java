@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic gyroscope traces the way the service feeds them: samples at 200 Hz, frames
+ * at 30 fps which get looked up a few frames after their exposure.
+ */
+public class GyroStabilizerTest {
+    private static final float TIME_CONSTANT = 0.4f;
+    private static final float MAX_CORRECTION = 0.05f;
+
+    private static final long SAMPLE_INTERVAL_NS = 5000000L;
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+    /** How long a frame takes from its exposure until it gets displayed */
+    private static final long DISPLAY_DELAY_NS = 3 * FRAME_INTERVAL_NS;
+    /** Rates a tick after 0, so the integration has a previous sample to start from */
+    private static final long START_NS = 1000000000L;
+
+    private GyroStabilizer mStabilizer;
+    private long mSampleAt;
+    private long mFrameAt;
+
+    /** A yaw trace, slow pan plus walking shake */
+    private static class Trace {
+        final float panRate;
+        final float shakeAmplitude;
+        final float shakeHz;
+
+        Trace(float panRate, float shakeAmplitude, float shakeHz) {
+            this.panRate = panRate;
+            this.shakeAmplitude = shakeAmplitude;
+            this.shakeHz = shakeHz;
+        }
+
+        float angle(long ns) {
+            final double t = (ns - START_NS) / 1e9;
+            return (float) (panRate * t + shakeAmplitude * Math.sin(2 * Math.PI * shakeHz * t));
+        }
+
+        float rate(long ns) {
+            final double t = (ns - START_NS) / 1e9;
+            final double w = 2 * Math.PI * shakeHz;
+            return (float) (panRate + shakeAmplitude * w * Math.cos(w * t));
+        }
+    }
+
+    @Before public void setUp() {
+        mStabilizer = new GyroStabilizer(TIME_CONSTANT, MAX_CORRECTION);
+        mSampleAt = START_NS;
+        mFrameAt = START_NS;
+    }
+
+    @Test public void correctionIsBounded() {
+        // a violent shake, far more than the correction can take
+        final Trace trace = new Trace(0f, 0.3f, 3f);
+        for (int frame = 0; frame < 300; frame++) {
+            nextFrame(trace);
+            assertTrue("correction " + mStabilizer.getCorrectionY(),
+                    Math.abs(mStabilizer.getCorrectionY()) <= MAX_CORRECTION);
+        }
+    }
+
+    @Test public void shakeGetsRemoved() {
+        final Trace trace = new Trace(0f, 0.01f, 8f);
+        // let the filter settle
+        for (int frame = 0; frame < 90; frame++) {
+            nextFrame(trace);
+        }
+
+        float worst = 0f;
+        for (int frame = 0; frame < 90; frame++) {
+            final long timestamp = nextFrame(trace);
+            final float shown = trace.angle(timestamp) + mStabilizer.getCorrectionY();
+            worst = Math.max(worst, Math.abs(shown));
+        }
+        assertTrue("residual shake " + worst, worst < 0.2f * trace.shakeAmplitude);
+    }
+
+    @Test public void slowPanPassesThrough() {
+        final Trace trace = new Trace(0.05f, 0f, 0f);
+        for (int frame = 0; frame < 150; frame++) {
+            nextFrame(trace);
+        }
+
+        final long start = nextFrame(trace);
+        final float shownStart = trace.angle(start) + mStabilizer.getCorrectionY();
+        long end = start;
+        for (int frame = 0; frame < 30; frame++) {
+            end = nextFrame(trace);
+        }
+        final float shownEnd = trace.angle(end) + mStabilizer.getCorrectionY();
+
+        // the view follows the pan at its full speed, only lagging a constant bit behind
+        final float panned = trace.panRate * (end - start) / 1e9f;
+        assertEquals(panned, shownEnd - shownStart, 0.01f * panned);
+        assertTrue(Math.abs(mStabilizer.getCorrectionY()) < MAX_CORRECTION);
+    }
+
+    @Test public void fastPanIsPulledAlong() {
+        // the filter lags more than the correction allows, the view must not get stuck
+        final Trace trace = new Trace(1f, 0f, 0f);
+        for (int frame = 0; frame < 150; frame++) {
+            nextFrame(trace);
+        }
+        assertEquals(-MAX_CORRECTION, mStabilizer.getCorrectionY(), 1e-4f);
+    }
+
+    @Test public void updateDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final Trace trace = new Trace(0.1f, 0.01f, 5f);
+        // warm up, so nothing gets counted which only happens once
+        for (int frame = 0; frame < 1000; frame++) {
+            nextFrame(trace);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int frame = 0; frame < 10000; frame++) {
+            nextFrame(trace);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // a single allocation per frame or sample would be hundreds of kilobytes
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    /**
+     * Feeds the samples up to the display of the next frame and looks it up.
+     *
+     * @return The sensor timestamp of the frame
+     */
+    private long nextFrame(Trace trace) {
+        mFrameAt += FRAME_INTERVAL_NS;
+        while (mSampleAt <= mFrameAt + DISPLAY_DELAY_NS) {
+            mStabilizer.addSample(mSampleAt, 0f, trace.rate(mSampleAt), 0f);
+            mSampleAt += SAMPLE_INTERVAL_NS;
+        }
+        assertTrue(mStabilizer.update(mFrameAt));
+        return mFrameAt;
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The remote interface of the service, called in process like the binder threads would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 22)
+public class OnTheGoBinderTest {
+    private static final long SETTLE = 3000;
+
+    private OnTheGoHarness mHarness;
+    private OnTheGoService.OnTheGoBinder mBinder;
+    private RecordingListener mListener;
+
+    private static class RecordingListener extends IOnTheGoListener.Stub {
+        int stateEvents;
+        int frameStatsEvents;
+        boolean active;
+        boolean paused;
+        float alpha;
+        float fps;
+
+        @Override
+        public void onStateChanged(boolean active, boolean paused, float alpha, int cameraType,
+                int thermalLevel) {
+            stateEvents++;
+            this.active = active;
+            this.paused = paused;
+            this.alpha = alpha;
+        }
+
+        @Override public void onFrameStats(float fps, long frameCount, int firstFrameLatency) {
+            frameStatsEvents++;
+            this.fps = fps;
+        }
+    }
+
+    @Before public void setUp() throws Exception {
+        mHarness = new OnTheGoHarness(new FakeCameraBackend());
+        mBinder = (OnTheGoService.OnTheGoBinder) mHarness.service.onBind(new Intent());
+        mListener = new RecordingListener();
+        mBinder.registerListener(mListener);
+    }
+
+    @After public void tearDown() {
+        mHarness.release();
+    }
+
+    @Test public void commandFloodIsCoalesced() throws Exception {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final int stateEvents = mListener.stateEvents;
+
+        for (int i = 1; i <= 500; i++) {
+            mBinder.setAlpha(i / 1000f);
+        }
+        mHarness.advance(SETTLE);
+
+        assertEquals(0.5f, Settings.get(mHarness.service)
+                .getFloat(Settings.KEY_ONTHEGO_ALPHA, 0f), 0.001f);
+        assertEquals(0.5f, mListener.alpha, 0.001f);
+        // one apply, one merged state event
+        assertEquals(stateEvents + 1, mListener.stateEvents);
+    }
+
+    @Test public void alphaIsCappedLikeTheDialog() throws Exception {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+
+        mBinder.setAlpha(1f);
+        mHarness.advance(SETTLE);
+
+        assertEquals(OnTheGoService.ALPHA_MAX, Settings.get(mHarness.service)
+                .getFloat(Settings.KEY_ONTHEGO_ALPHA, 0f), 0.001f);
+        assertEquals(OnTheGoService.ALPHA_MAX, mListener.alpha, 0.001f);
+    }
+
+    @Test public void invalidValuesAreIgnored() throws Exception {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final Settings settings = Settings.get(mHarness.service);
+        final float alpha = settings.getFloat(Settings.KEY_ONTHEGO_ALPHA, 0.5f);
+
+        mBinder.setAlpha(Float.NaN);
+        mBinder.setGeometry(3, 0.5f, 0, false);
+        mBinder.setGeometry(OverlayGeometry.ANCHOR_TOP, Float.NaN, 0, false);
+        final Bundle commands = new Bundle();
+        commands.putInt(CommandCoalescer.KEY_GEOMETRY_ANCHOR, -1);
+        commands.putFloat(CommandCoalescer.KEY_ALPHA, 0.3f);
+        mBinder.applyCommands(commands);
+        mHarness.advance(SETTLE);
+
+        // the valid alpha of the bundle still applies
+        assertEquals(0.3f, settings.getFloat(Settings.KEY_ONTHEGO_ALPHA, alpha), 0.001f);
+        assertEquals(-1, settings.getInt(Settings.KEY_ONTHEGO_ANCHOR, -1));
+        assertTrue(mHarness.isOverlayShown());
+    }
+
+    @Test public void remoteCameraDoesNotRestartAStoppedOverlay() throws Exception {
+        final Settings settings = Settings.get(mHarness.service);
+        settings.setBoolean(Settings.KEY_ONTHEGO_SERVICE_RESTART, false);
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        // stops with the notification offering a restart
+        mHarness.restart();
+        mHarness.advance(SETTLE);
+        assertFalse(mHarness.isOverlayShown());
+
+        settings.setBoolean(Settings.KEY_ONTHEGO_SERVICE_RESTART, true);
+        mBinder.setCamera(OnTheGoService.CAMERA_FRONT);
+        mBinder.setPaused(false);
+        mHarness.advance(SETTLE);
+
+        assertFalse(mHarness.isOverlayShown());
+        assertFalse(mListener.active);
+    }
+
+    @Test public void stateEventsAreThrottled() throws Exception {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final int stateEvents = mListener.stateEvents;
+
+        // every apply changes the state, the listener still only hears about it every interval
+        for (int i = 0; i < 100; i++) {
+            mBinder.setPaused(i % 2 == 0);
+            mHarness.advance(10);
+        }
+        mHarness.advance(SETTLE);
+
+        assertTrue("state events: " + (mListener.stateEvents - stateEvents),
+                mListener.stateEvents - stateEvents <= 11);
+        assertFalse(mListener.paused);
+    }
+
+    @Test public void frameStatsArriveOncePerInterval() {
+        mHarness.start();
+        mHarness.advance(10000);
+
+        assertTrue(mListener.active);
+        assertTrue(mListener.frameStatsEvents >= 8 && mListener.frameStatsEvents <= 10);
+        assertEquals(30f, mListener.fps, 1f);
+    }
+
+    @Test public void noEventsAfterUnregistering() throws Exception {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mBinder.unregisterListener(mListener);
+        final int stateEvents = mListener.stateEvents;
+        final int frameStatsEvents = mListener.frameStatsEvents;
+
+        mBinder.setAlpha(0.2f);
+        mHarness.stop();
+        mHarness.advance(SETTLE);
+
+        assertEquals(stateEvents, mListener.stateEvents);
+        assertEquals(frameStatsEvents, mListener.frameStatsEvents);
+    }
+
+}
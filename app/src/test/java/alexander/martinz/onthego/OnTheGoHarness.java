@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.graphics.SurfaceTexture;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.TextureView;
+
+import org.robolectric.Robolectric;
+import org.robolectric.Shadows;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler;
+
+import java.lang.reflect.Field;
+
+/**
+ * Runs a real {@link OnTheGoService} against a {@link FakeCameraBackend} on a paused main
+ * looper. Time only moves through {@link #advance(long)}, which runs every due main thread task
+ * on its own and keeps track of how long the main thread was busy with it.
+ * <p>
+ * There is no hardware rendering in the JVM, so the harness plays the part of the framework
+ * and hands a surface to every new texture view of the overlay after {@link #SURFACE_LATENCY}.
+ * Like on a device, windows do not get drawn while the screen is off, so their surface only
+ * arrives once it turns on.
+ */
+class OnTheGoHarness {
+    static final int SURFACE_LATENCY = 16;
+    static final int VIEW_WIDTH = 1080;
+    static final int VIEW_HEIGHT = 1920;
+
+    final OnTheGoService service;
+    final FakeCameraBackend camera;
+
+    private final Scheduler mScheduler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private TextureView mSurfaceView;
+    private boolean mScreenOn = true;
+    private int mStartId;
+
+    private long mMaxBlockedNs;
+    private long mTotalBlockedNs;
+
+    OnTheGoHarness(FakeCameraBackend camera) {
+        this.camera = camera;
+        RuntimeEnvironment.getRobolectricPackageManager()
+                .setSystemFeature(PackageManager.FEATURE_CAMERA, true);
+        RuntimeEnvironment.getRobolectricPackageManager()
+                .setSystemFeature(PackageManager.FEATURE_CAMERA_FRONT, true);
+
+        resetSettings();
+
+        ShadowLooper.pauseMainLooper();
+        mScheduler = Robolectric.getForegroundThreadScheduler();
+
+        service = Robolectric.setupService(OnTheGoService.class);
+        service.setCameraBackend(camera);
+    }
+
+    void start() {
+        command(OnTheGoService.ACTION_START);
+    }
+
+    void stop() {
+        command(OnTheGoService.ACTION_STOP);
+    }
+
+    void command(String action) {
+        final Intent intent = new Intent(RuntimeEnvironment.application, OnTheGoService.class);
+        intent.setAction(action);
+        final long start = System.nanoTime();
+        service.onStartCommand(intent, 0, ++mStartId);
+        onMainThreadBusy(System.nanoTime() - start);
+    }
+
+    void restart() {
+        final long start = System.nanoTime();
+        service.restartOnTheGo();
+        onMainThreadBusy(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the broadcast, it gets delivered on the next {@link #advance(long)}.
+     */
+    void screen(boolean on) {
+        mScreenOn = on;
+        RuntimeEnvironment.application.sendBroadcast(
+                new Intent(on ? Intent.ACTION_SCREEN_ON : Intent.ACTION_SCREEN_OFF));
+    }
+
+    /**
+     * Sends the broadcast of the keyguard going away, it gets delivered on the next
+     * {@link #advance(long)}.
+     */
+    void userPresent() {
+        setKeyguardLocked(false);
+        RuntimeEnvironment.application.sendBroadcast(new Intent(Intent.ACTION_USER_PRESENT));
+    }
+
+    void setKeyguardLocked(boolean locked) {
+        final KeyguardManager km = (KeyguardManager) RuntimeEnvironment.application
+                .getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(km).setKeyguardLocked(locked);
+    }
+
+    /**
+     * Sends a battery update with the given temperature in tenths of a degree, it gets delivered
+     * on the next {@link #advance(long)}.
+     */
+    void battery(int temperature) {
+        final Intent intent = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        intent.putExtra(BatteryManager.EXTRA_TEMPERATURE, temperature);
+        RuntimeEnvironment.application.sendStickyBroadcast(intent);
+    }
+
+    /**
+     * Moves time forward, running every main thread task which becomes due.
+     */
+    void advance(long ms) {
+        final long end = mScheduler.getCurrentTime() + ms;
+        while (true) {
+            scheduleSurface();
+            if (mScheduler.size() == 0 || mScheduler.getNextScheduledTaskTime() > end) {
+                break;
+            }
+            final long start = System.nanoTime();
+            mScheduler.runOneTask();
+            onMainThreadBusy(System.nanoTime() - start);
+        }
+        mScheduler.advanceTo(end);
+    }
+
+    long now() {
+        return mScheduler.getCurrentTime();
+    }
+
+    boolean isOverlayShown() {
+        return service.getOverlay() != null;
+    }
+
+    boolean hasScreenReceiver() {
+        return !ShadowApplication.getInstance()
+                .getReceiversForIntent(new Intent(Intent.ACTION_SCREEN_ON)).isEmpty();
+    }
+
+    /**
+     * @return The longest time in milliseconds a single main thread task took
+     */
+    long getMaxBlockedTime() {
+        return mMaxBlockedNs / 1000000L;
+    }
+
+    /**
+     * @return The time in milliseconds all main thread tasks took together
+     */
+    long getTotalBlockedTime() {
+        return mTotalBlockedNs / 1000000L;
+    }
+
+    /**
+     * Forgets the blocked time so far, eg to leave out class loading of a warm up run.
+     */
+    void resetBlockedTime() {
+        mMaxBlockedNs = 0;
+        mTotalBlockedNs = 0;
+    }
+
+    void release() {
+        service.onDestroy();
+    }
+
+    /**
+     * Settings is a process wide singleton and would otherwise keep the preferences of the
+     * application of a previous test.
+     */
+    private static void resetSettings() {
+        try {
+            final Field instance = Settings.class.getDeclaredField("sInstance");
+            instance.setAccessible(true);
+            instance.set(null, null);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not reset the settings", e);
+        }
+    }
+
+    private void onMainThreadBusy(long ns) {
+        mMaxBlockedNs = Math.max(mMaxBlockedNs, ns);
+        mTotalBlockedNs += ns;
+    }
+
+    private void scheduleSurface() {
+        final TextureView view = service.getTextureView();
+        if (view == null || view == mSurfaceView || !mScreenOn) {
+            return;
+        }
+
+        mSurfaceView = view;
+        mMainHandler.postDelayed(new Runnable() {
+            @Override public void run() {
+                // the overlay may have been replaced or removed in the meantime
+                if (view != service.getTextureView() || !isOverlayShown()) {
+                    return;
+                }
+                if (!mScreenOn) {
+                    // not drawn, try again once the screen is back on
+                    mSurfaceView = null;
+                    return;
+                }
+                view.getSurfaceTextureListener().onSurfaceTextureAvailable(
+                        new SurfaceTexture(0), VIEW_WIDTH, VIEW_HEIGHT);
+            }
+        }, SURFACE_LATENCY);
+    }
+
+}
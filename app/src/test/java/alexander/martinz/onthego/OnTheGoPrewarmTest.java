@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Warming up the camera behind the keyguard and revealing it on unlock.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 22)
+public class OnTheGoPrewarmTest {
+    private static final long SETTLE = 3000;
+
+    private FakeCameraBackend mCamera;
+    private OnTheGoHarness mHarness;
+
+    @Before public void setUp() {
+        mCamera = new FakeCameraBackend();
+        mHarness = new OnTheGoHarness(mCamera);
+        Settings.get(RuntimeEnvironment.application)
+                .setBoolean(Settings.KEY_ONTHEGO_PREWARM, true);
+
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mHarness.screen(false);
+        mHarness.advance(SETTLE);
+    }
+
+    @After public void tearDown() {
+        mHarness.release();
+    }
+
+    @Test public void lockedScreenOnConfiguresWithoutStreaming() {
+        warmUp();
+
+        final PrewarmTracker prewarm = mHarness.service.getPrewarmTracker();
+        assertTrue(prewarm.isWarming());
+        assertEquals(0f, mHarness.service.getOverlay().getAlpha(), 0f);
+        assertEquals(1, mCamera.getOpenDeviceCount());
+        assertEquals(1, mCamera.getOpenSessionCount());
+        assertEquals(0, mCamera.getRepeatingSessionCount());
+        assertFalse(mHarness.service.getSessionTimings().hasFirstFrame());
+    }
+
+    @Test public void unlockOnlyWaitsForTheFirstFrame() {
+        warmUp();
+
+        mHarness.userPresent();
+        mHarness.advance(mCamera.firstFrameLatency);
+
+        final SessionTimings timings = mHarness.service.getSessionTimings();
+        assertTrue(timings.hasFirstFrame());
+        assertTrue("first frame after " + timings.getFirstFrameLatency() + "ms",
+                timings.getFirstFrameLatency() <= mCamera.firstFrameLatency);
+        assertTrue(mHarness.service.getOverlay().getAlpha() > 0f);
+        // one device for the first session, one for the warm up, none for the unlock
+        assertEquals(2, mCamera.getDevices().size());
+        assertEquals(1, mCamera.getRepeatingSessionCount());
+
+        final PrewarmTracker prewarm = mHarness.service.getPrewarmTracker();
+        assertFalse(prewarm.isWarming());
+        assertEquals(1, prewarm.getHitCount());
+        assertEquals(0, prewarm.getMissCount());
+        assertTrue(prewarm.getTimeSaved()
+                >= mCamera.openLatency + mCamera.configureLatency);
+    }
+
+    @Test public void unrevealedWarmUpGetsCancelled() {
+        warmUp();
+
+        mHarness.advance(OnTheGoService.PREWARM_DEADLINE);
+
+        assertFalse(mHarness.isOverlayShown());
+        assertEquals(0, mCamera.getOpenDeviceCount());
+        assertEquals(0, mCamera.getOpenSessionCount());
+        assertEquals(0, mCamera.getDoubleClosedCount());
+        assertTrue(mHarness.hasScreenReceiver());
+
+        final PrewarmTracker prewarm = mHarness.service.getPrewarmTracker();
+        assertEquals(0, prewarm.getHitCount());
+        assertEquals(1, prewarm.getMissCount());
+        assertEquals(OnTheGoService.PREWARM_DEADLINE, prewarm.getWastedCameraTime());
+
+        // unlocking late still brings the overlay up, just from scratch
+        mHarness.userPresent();
+        mHarness.advance(SETTLE);
+        assertTrue(mHarness.isOverlayShown());
+        assertEquals(1, mCamera.getRepeatingSessionCount());
+    }
+
+    @Test public void screenOffWhileWarmingIsAMiss() {
+        warmUp();
+
+        mHarness.screen(false);
+        mHarness.advance(SETTLE);
+
+        assertFalse(mHarness.isOverlayShown());
+        assertEquals(0, mCamera.getOpenDeviceCount());
+        assertEquals(1, mHarness.service.getPrewarmTracker().getMissCount());
+    }
+
+    @Test public void proximityOpensTheCameraBeforeTheScreenTurnsOn() {
+        Settings.get(RuntimeEnvironment.application)
+                .setBoolean(Settings.KEY_ONTHEGO_PREWARM_PROXIMITY, true);
+        takeOutOfPocket();
+
+        // the screen is still off, the overlay has no surface but the camera is open
+        final PrewarmTracker prewarm = mHarness.service.getPrewarmTracker();
+        assertTrue(prewarm.isWarming());
+        assertEquals(1, mCamera.getOpenDeviceCount());
+        assertEquals(0, mCamera.getOpenSessionCount());
+
+        warmUp();
+        assertEquals(1, mCamera.getOpenSessionCount());
+        assertEquals(0, mCamera.getRepeatingSessionCount());
+
+        mHarness.userPresent();
+        mHarness.advance(mCamera.firstFrameLatency);
+        final SessionTimings timings = mHarness.service.getSessionTimings();
+        assertTrue(timings.hasFirstFrame());
+        assertTrue(timings.getFirstFrameLatency() <= mCamera.firstFrameLatency);
+        // one device for the first session, one opened from the pocket
+        assertEquals(2, mCamera.getDevices().size());
+        assertEquals(1, prewarm.getHitCount());
+    }
+
+    @Test public void pocketFalseAlarmIsAMiss() {
+        Settings.get(RuntimeEnvironment.application)
+                .setBoolean(Settings.KEY_ONTHEGO_PREWARM_PROXIMITY, true);
+        takeOutOfPocket();
+
+        mHarness.advance(OnTheGoService.PREWARM_DEADLINE);
+
+        assertFalse(mHarness.isOverlayShown());
+        assertEquals(0, mCamera.getOpenDeviceCount());
+        assertEquals(0, mCamera.getDoubleClosedCount());
+        final PrewarmTracker prewarm = mHarness.service.getPrewarmTracker();
+        assertEquals(1, prewarm.getMissCount());
+        // the camera really was on for all of it
+        assertEquals(OnTheGoService.PREWARM_DEADLINE, prewarm.getWastedCameraTime());
+    }
+
+    private void takeOutOfPocket() {
+        mHarness.service.onProximityChanged(true);
+        mHarness.service.onProximityChanged(false);
+        mHarness.advance(SETTLE);
+    }
+
+    /**
+     * Turns the screen on behind the keyguard and waits until the session is configured.
+     */
+    private void warmUp() {
+        mHarness.setKeyguardLocked(true);
+        mHarness.screen(true);
+        mHarness.advance(SETTLE);
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import android.hardware.camera2.CameraDevice;
+import android.util.Size;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Start, stop and restart behaviour of the service against a scripted camera. Latencies are in
+ * scheduler time and exact, the main thread budget is in real time and generous on purpose.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 22)
+public class OnTheGoServiceLatencyTest {
+    /** Longest a single main thread task may take, camera work belongs on the callbacks */
+    private static final long MAX_MAIN_THREAD_TASK_MS = 50;
+    /** Long enough for any restart delay plus open, configure and first frame */
+    private static final long SETTLE = 3000;
+    private static final int STORM_SIZE = 25;
+
+    private FakeCameraBackend mCamera;
+    private OnTheGoHarness mHarness;
+
+    @Before public void setUp() {
+        mCamera = new FakeCameraBackend();
+        mHarness = new OnTheGoHarness(mCamera);
+    }
+
+    @After public void tearDown() {
+        mHarness.release();
+    }
+
+    @Test public void firstFrameArrivesWithinBudget() {
+        mCamera.openLatency = 200;
+        mCamera.configureLatency = 120;
+        mCamera.firstFrameLatency = 60;
+
+        mHarness.start();
+        mHarness.advance(SETTLE);
+
+        final SessionTimings timings = mHarness.service.getSessionTimings();
+        assertTrue(timings.hasFirstFrame());
+        assertEquals(200, timings.getOpenLatency());
+        assertEquals(120, timings.getConfigureLatency());
+        // nothing but the camera itself may add to the chain
+        final int budget = OnTheGoHarness.SURFACE_LATENCY + 200 + 120 + 60;
+        assertTrue("first frame after " + timings.getFirstFrameLatency() + "ms",
+                timings.getFirstFrameLatency() <= budget);
+    }
+
+    @Test public void restartWhileOpeningClosesTheStaleCamera() {
+        mCamera.openLatency = 500;
+        mHarness.start();
+        mHarness.advance(OnTheGoHarness.SURFACE_LATENCY + 100);
+        assertEquals(1, mCamera.getDevices().size());
+
+        // the open is still in flight, this must neither block nor leak the first device
+        mHarness.restart();
+        mHarness.advance(SETTLE);
+
+        assertEquals(2, mCamera.getDevices().size());
+        assertTrue(mCamera.getDevices().get(0).isClosed());
+        assertStreamingOnce();
+    }
+
+    @Test public void restartStormDoesNotLeak() {
+        warmUp();
+
+        final Random random = new Random(42);
+        for (int i = 0; i < STORM_SIZE; i++) {
+            mHarness.restart();
+            // anywhere from before the restart delay to well into the next session
+            mHarness.advance(random.nextInt(1200));
+        }
+        mHarness.advance(SETTLE);
+
+        assertStreamingOnce();
+        assertMainThreadWithinBudget();
+    }
+
+    @Test public void screenStormDoesNotLeak() {
+        warmUp();
+
+        final Random random = new Random(42);
+        for (int i = 0; i < STORM_SIZE; i++) {
+            mHarness.screen(false);
+            mHarness.advance(random.nextInt(200));
+            mHarness.screen(true);
+            mHarness.advance(random.nextInt(600));
+        }
+        mHarness.advance(SETTLE);
+        assertStreamingOnce();
+        assertMainThreadWithinBudget();
+
+        mHarness.screen(false);
+        mHarness.advance(SETTLE);
+        assertFalse(mHarness.isOverlayShown());
+        assertEquals(0, mCamera.getOpenDeviceCount());
+        assertEquals(0, mCamera.getOpenSessionCount());
+        // still running, waiting for the screen to turn on again
+        assertTrue(mHarness.hasScreenReceiver());
+    }
+
+    @Test public void pauseKeepsTheSessionConfigured() {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final SessionTimings timings = mHarness.service.getSessionTimings();
+
+        mHarness.service.setPaused(true);
+        final long frames = timings.getFrameCount();
+        mHarness.advance(SETTLE);
+        assertEquals(frames, timings.getFrameCount());
+        assertEquals(0, mCamera.getRepeatingSessionCount());
+        assertEquals(1, mCamera.getOpenSessionCount());
+
+        // resuming costs a single frame, no open or configure
+        mHarness.service.setPaused(false);
+        mHarness.advance(mCamera.firstFrameLatency);
+        assertTrue(timings.getFrameCount() > frames);
+        assertEquals(1, mCamera.getDevices().size());
+    }
+
+    @Test public void stopReleasesEverything() {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mHarness.stop();
+        mHarness.advance(SETTLE);
+
+        assertReleased();
+        final long frames = mHarness.service.getSessionTimings().getFrameCount();
+        mHarness.advance(SETTLE);
+        assertEquals(frames, mHarness.service.getSessionTimings().getFrameCount());
+    }
+
+    @Test public void startAfterStopDoesNotStayPaused() {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mHarness.service.setPaused(true);
+        mHarness.stop();
+        mHarness.advance(SETTLE);
+
+        // same instance, as if a bound client kept the service alive
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        assertStreamingOnce();
+    }
+
+    @Test public void startAfterStoppingForARestartStarts() {
+        Settings.get(RuntimeEnvironment.application)
+                .setBoolean(Settings.KEY_ONTHEGO_SERVICE_RESTART, false);
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        // leaves the notification offering the restart behind
+        mHarness.restart();
+        mHarness.advance(SETTLE);
+        assertReleased();
+
+        // controls of the dead overlay are ignored, a start is not taken for a second one
+        mHarness.command(OnTheGoService.ACTION_PAUSE);
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        assertStreamingOnce();
+    }
+
+    @Test public void stopWhileOpeningReleasesEverything() {
+        mCamera.openLatency = 500;
+        mHarness.start();
+        mHarness.advance(OnTheGoHarness.SURFACE_LATENCY + 100);
+        mHarness.stop();
+        mHarness.advance(SETTLE);
+
+        assertReleased();
+    }
+
+    @Test public void openErrorShutsDownCleanly() {
+        mCamera.openError = CameraDevice.StateCallback.ERROR_CAMERA_IN_USE;
+        mHarness.start();
+        mHarness.advance(SETTLE);
+
+        assertReleased();
+        assertEquals(CameraDevice.StateCallback.ERROR_CAMERA_IN_USE,
+                mHarness.service.getSessionTimings().getErrorCode());
+    }
+
+    @Test public void configureFailureShutsDownCleanly() {
+        mCamera.configureFails = true;
+        mHarness.start();
+        mHarness.advance(SETTLE);
+
+        assertReleased();
+        assertEquals(SessionTelemetry.ERROR_CONFIGURE_FAILED,
+                mHarness.service.getSessionTimings().getErrorCode());
+    }
+
+    @Test public void heatingOnlyReconfiguresForTheResolution() {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final FakeCameraDevice device = mCamera.getDevices().get(0);
+        assertEquals(1, device.getSessions().size());
+
+        mHarness.battery(410);
+        mHarness.advance(SETTLE);
+        assertEquals(2, device.getSessions().size());
+
+        // noise reduction and analysis are changed on the running session
+        mHarness.battery(450);
+        mHarness.advance(SETTLE);
+        assertEquals(2, device.getSessions().size());
+        assertEquals(1, mCamera.getDevices().size());
+        assertStreamingOnce();
+    }
+
+    @Test public void heatingReducesTheEdgeMapResolution() {
+        Settings.get(RuntimeEnvironment.application).setInt(Settings.KEY_ONTHEGO_RENDER_MODE,
+                OnTheGoService.RENDER_MODE_EDGES);
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        final FakeCameraDevice device = mCamera.getDevices().get(0);
+        final Size size = mHarness.service.getConfiguredStreamSize();
+        assertEquals(1, device.getSessions().size());
+
+        mHarness.battery(410);
+        mHarness.advance(SETTLE);
+        assertEquals(2, device.getSessions().size());
+        final Size reduced = mHarness.service.getConfiguredStreamSize();
+        assertTrue(reduced + " is not below " + size,
+                reduced.getWidth() < size.getWidth());
+        assertEquals(1, mCamera.getDevices().size());
+        assertStreamingOnce();
+    }
+
+    @Test public void keyguardCoversADraggableOverlay() {
+        new OverlayGeometry(OverlayGeometry.ANCHOR_BOTTOM, 0.5f, 0, true)
+                .persist(RuntimeEnvironment.application);
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mHarness.screen(false);
+        mHarness.advance(SETTLE);
+
+        // the alert window of a draggable overlay sits below the keyguard
+        mHarness.setKeyguardLocked(true);
+        mHarness.screen(true);
+        mHarness.advance(SETTLE);
+        assertEquals(1, mCamera.getOpenSessionCount());
+        assertEquals(0, mCamera.getRepeatingSessionCount());
+
+        mHarness.userPresent();
+        mHarness.advance(mCamera.firstFrameLatency);
+        assertStreamingOnce();
+    }
+
+    /**
+     * Runs one session, so class loading does not count against the main thread budget.
+     */
+    private void warmUp() {
+        mHarness.start();
+        mHarness.advance(SETTLE);
+        mHarness.resetBlockedTime();
+    }
+
+    private void assertStreamingOnce() {
+        assertTrue(mHarness.isOverlayShown());
+        assertEquals(1, mCamera.getOpenDeviceCount());
+        assertEquals(1, mCamera.getOpenSessionCount());
+        assertEquals(1, mCamera.getRepeatingSessionCount());
+        assertEquals(0, mCamera.getDoubleClosedCount());
+        assertTrue(mHarness.service.getSessionTimings().hasFirstFrame());
+    }
+
+    private void assertReleased() {
+        assertFalse(mHarness.isOverlayShown());
+        assertFalse(mHarness.hasScreenReceiver());
+        assertEquals(0, mCamera.getOpenDeviceCount());
+        assertEquals(0, mCamera.getOpenSessionCount());
+        assertEquals(0, mCamera.getDoubleClosedCount());
+    }
+
+    private void assertMainThreadWithinBudget() {
+        assertTrue("main thread blocked for " + mHarness.getMaxBlockedTime() + "ms",
+                mHarness.getMaxBlockedTime() <= MAX_MAIN_THREAD_TASK_MS);
+    }
+
+}
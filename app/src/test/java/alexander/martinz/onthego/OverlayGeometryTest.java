@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import android.graphics.PixelFormat;
+import android.view.Gravity;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Layout params of the overlay window, including switching between geometries at runtime.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 22)
+public class OverlayGeometryTest {
+    private static final int DISPLAY_HEIGHT = 1920;
+
+    @Test public void fullscreenHidesTheStatusBar() {
+        final WindowManager.LayoutParams params = createParams();
+        new OverlayGeometry(OverlayGeometry.ANCHOR_BOTTOM, 1f, 0, false)
+                .applyTo(params, DISPLAY_HEIGHT);
+
+        assertTrue(isFullscreen(params));
+        assertEquals(ViewGroup.LayoutParams.MATCH_PARENT, params.height);
+    }
+
+    @Test public void shrinkingClearsFullscreen() {
+        final WindowManager.LayoutParams params = createParams();
+        new OverlayGeometry(OverlayGeometry.ANCHOR_BOTTOM, 1f, 0, false)
+                .applyTo(params, DISPLAY_HEIGHT);
+        new OverlayGeometry(OverlayGeometry.ANCHOR_BOTTOM, 0.25f, 0, false)
+                .applyTo(params, DISPLAY_HEIGHT);
+
+        assertFalse(isFullscreen(params));
+        assertEquals(480, params.height);
+        assertEquals(Gravity.BOTTOM, params.gravity);
+        // the other flags stay untouched
+        assertTrue((params.flags & WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE) != 0);
+    }
+
+    @Test public void growingSetsFullscreen() {
+        final WindowManager.LayoutParams params = createParams();
+        new OverlayGeometry(OverlayGeometry.ANCHOR_TOP, 0.5f, 100, false)
+                .applyTo(params, DISPLAY_HEIGHT);
+        assertFalse(isFullscreen(params));
+
+        new OverlayGeometry(OverlayGeometry.ANCHOR_TOP, 1f, 100, false)
+                .applyTo(params, DISPLAY_HEIGHT);
+        assertTrue(isFullscreen(params));
+        assertEquals(0, params.y);
+    }
+
+    @Test public void outOfRangeValuesAreClamped() {
+        final OverlayGeometry below = new OverlayGeometry(-1, Float.NaN, 0, false);
+        assertEquals(OverlayGeometry.ANCHOR_TOP, below.anchor);
+        assertEquals(OverlayGeometry.HEIGHT_MAX, below.heightFraction, 0f);
+
+        final OverlayGeometry above = new OverlayGeometry(3, 0.1f, 0, false);
+        assertEquals(OverlayGeometry.ANCHOR_BOTTOM, above.anchor);
+        assertEquals(OverlayGeometry.HEIGHT_MIN, above.heightFraction, 0f);
+
+        final WindowManager.LayoutParams params = createParams();
+        below.applyTo(params, DISPLAY_HEIGHT);
+        assertEquals(ViewGroup.LayoutParams.MATCH_PARENT, params.height);
+    }
+
+    private static WindowManager.LayoutParams createParams() {
+        return new WindowManager.LayoutParams(
+                WindowManager.LayoutParams.TYPE_SYSTEM_OVERLAY,
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE,
+                PixelFormat.TRANSLUCENT);
+    }
+
+    private static boolean isFullscreen(WindowManager.LayoutParams params) {
+        return (params.flags & WindowManager.LayoutParams.FLAG_FULLSCREEN) != 0;
+    }
+
+}
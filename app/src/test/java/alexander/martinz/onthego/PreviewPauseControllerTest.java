@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package alexander.martinz.onthego;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewPauseControllerTest {
+    private int mPauses;
+    private int mResumes;
+    private PreviewPauseController mController;
+
+    @Before public void setUp() {
+        mController = new PreviewPauseController(new PreviewPauseController.Listener() {
+            @Override public void onPreviewPaused() {
+                mPauses++;
+            }
+
+            @Override public void onPreviewResumed() {
+                mResumes++;
+            }
+        });
+    }
+
+    @Test public void alphaHasHysteresis() {
+        mController.setAlpha(0.05f, 0);
+        assertTrue(mController.isPaused());
+
+        // between the thresholds nothing changes
+        mController.setAlpha(0.08f, 10);
+        assertTrue(mController.isPaused());
+        mController.setAlpha(0.1f, 20);
+        assertFalse(mController.isPaused());
+        mController.setAlpha(0.08f, 30);
+        assertFalse(mController.isPaused());
+
+        assertEquals(1, mPauses);
+        assertEquals(1, mResumes);
+    }
+
+    @Test public void reasonsAreCountedSeparately() {
+        mController.setCovered(true, 0);
+        mController.setUserPaused(true, 100);
+        mController.setCovered(false, 300);
+        mController.setUserPaused(false, 400);
+        mController.setWarming(true, 1000);
+        mController.setWarming(false, 1050);
+
+        assertEquals(300, mController.getPausedTime(PreviewPauseController.REASON_COVERED, 2000));
+        assertEquals(300, mController.getPausedTime(PreviewPauseController.REASON_USER, 2000));
+        assertEquals(50, mController.getPausedTime(PreviewPauseController.REASON_WARMING, 2000));
+        assertEquals(0, mController.getPausedTime(PreviewPauseController.REASON_ALPHA, 2000));
+        assertEquals(1, mController.getPauseCount(PreviewPauseController.REASON_USER));
+
+        // overlapping reasons are a single pause of the preview
+        assertEquals(2, mController.getPauseCount());
+        assertEquals(450, mController.getPausedTime(2000));
+        assertEquals(2, mPauses);
+        assertEquals(2, mResumes);
+    }
+
+    @Test public void runningPauseCountsUntilNow() {
+        mController.setVisible(false, 100);
+
+        assertEquals(400, mController.getPausedTime(PreviewPauseController.REASON_HIDDEN, 500));
+        assertEquals(400, mController.getPausedTime(500));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Alexander Martinz
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package alexander.martinz.onthego;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThermalLadderTest {
+    private final List<Integer> mTransitions = new ArrayList<>();
+    private ThermalLadder mLadder;
+
+    @Before public void setUp() {
+        mLadder = new ThermalLadder(new ThermalLadder.Listener() {
+            @Override public void onLevelChanged(int oldLevel, int newLevel, int temperature) {
+                mTransitions.add(newLevel);
+            }
+        });
+    }
+
+    @Test public void heatingStepsStraightToTheLevel() {
+        mLadder.setTemperature(350, 0);
+        assertEquals(ThermalLadder.LEVEL_NORMAL, mLadder.getLevel());
+
+        mLadder.setTemperature(445, 1000);
+        assertEquals(ThermalLadder.LEVEL_NO_ANALYSIS, mLadder.getLevel());
+        assertEquals(1, mTransitions.size());
+    }
+
+    @Test public void coolingNeedsHysteresis() {
+        mLadder.setTemperature(405, 0);
+        assertEquals(ThermalLadder.LEVEL_REDUCED_RESOLUTION, mLadder.getLevel());
+
+        // below the threshold, but not by enough
+        mLadder.setTemperature(390, ThermalLadder.MIN_DWELL_MS);
+        assertEquals(ThermalLadder.LEVEL_REDUCED_RESOLUTION, mLadder.getLevel());
+
+        mLadder.setTemperature(380, ThermalLadder.MIN_DWELL_MS);
+        assertEquals(ThermalLadder.LEVEL_NORMAL, mLadder.getLevel());
+    }
+
+    @Test public void coolingWaitsForTheDwellTime() {
+        mLadder.setTemperature(405, 0);
+        mLadder.setTemperature(350, ThermalLadder.MIN_DWELL_MS - 1);
+        assertEquals(ThermalLadder.LEVEL_REDUCED_RESOLUTION, mLadder.getLevel());
+
+        mLadder.setTemperature(350, ThermalLadder.MIN_DWELL_MS);
+        assertEquals(ThermalLadder.LEVEL_NORMAL, mLadder.getLevel());
+    }
+
+    @Test public void coolingStepsBackOneLevelAtATime() {
+        mLadder.setTemperature(450, 0);
+        long now = 0;
+        for (int level = ThermalLadder.LEVEL_NO_ANALYSIS; level > 0; level--) {
+            now += ThermalLadder.MIN_DWELL_MS;
+            mLadder.setTemperature(300, now);
+            assertEquals(level - 1, mLadder.getLevel());
+        }
+        assertEquals(4, mLadder.getTransitionCount());
+    }
+
+    @Test public void noiseAroundAThresholdDoesNotFlap() {
+        for (int i = 0; i < 100; i++) {
+            mLadder.setTemperature((i % 2 == 0) ? 401 : 395, i * 1000);
+        }
+        assertEquals(1, mTransitions.size());
+    }
+
+}